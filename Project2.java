@@ -10,7 +10,14 @@
  * >>> displayProc : 'true' will display when every procedure begings and ends. Useful for errors/debugging.
  * >>> displayLexical : 'true' will display lexical information as it is scanned. Useful for errors/debugging.
  * >>> displayAST : 'true' will display the complete abstract-syntax-tree after the syntax scan.
- * >>> analyzerType : choose whether to use Lexical scan or Syntax scan.
+ * >>> analyzerType : choose whether to use Lexical scan or Syntax scan (or LexerCheck to compare lexers).
+ * >>> lexerType : choose the Table lexer or the original Direct lexer.
+ * >>> preLex : 'true' will lex the whole file into a TokenBuffer before analysis (Table lexer only).
+ * >>> astType : choose to build the AST from ASTNodes or in the reusable ASTArena.
+ * >>> outputType : choose where output goes: Stdout, File ('outputFile'), Memory or Discard.
+ * >>> runProgram : 'true' will run the program after a successful syntax scan (also "-run").
+ * >>> runType : choose to run programs compiled to Bytecode, to a JVM class (Jvm) or by walking the AST (Tree).
+ * >>> optimizeAST : 'true' will propagate and fold constants and remove dead branches and stores in the AST before a program runs.
  * 
  * NOTE ON AST EXTRA-CREDIT:
  * I have implemented a complete abstract-syntax-tree and tested it vigorously.
@@ -23,34 +30,94 @@
  * The command line parameter accepts one or multiple filenames, for example:
  * "java Project1 test1.txt"
  * "java Project1 test1.txt test2.txt test3.txt"
+ * "java Project2 -batch test1.txt test2.txt test3.txt" analyzes the files in parallel
+ * and ends with a summary (files/sec, tokens/sec, passed and failed).
+ * "java Project2 -run euclid.txt" also runs each program that passes the syntax scan.
  * 
- * Also note that I used try/catch in each procedure to avoid null return values
- * from sub-ASTs that happens when the syntax analyzer fails.
+ * After a syntax error the parser recovers (panic mode): it skips to a token in
+ * the procedure's follow set, such as ";" or the start of a statement, and keeps
+ * going, so every error in the file is reported in one scan.
  * 
  * This code contains the following classes:
- * AST              Abstract-syntax-tree data structure.
+ * ASTBuilder       What the parser builds the AST through, using int handles.
+ * AST              Abstract-syntax-tree data structure, made of ASTNodes.
  * ASTNode          Nodes for the AST.
- * Position         Object that contains line and character positions.
- * Token            Object that contains kind, position, and value values.
- * ParseScanner     Wrapper for Scanner class to allow peeking.
+ * ASTArena         Compact AST in int arrays, used with 'astType'. Keeps statement spans, indexed for reparse().
+ * ASTPrinter       Displays the AST in-order, without recursion.
+ * SemanticAnalyzer Resolves variables to their declarations (a stack of scope hash tables) and checks types.
+ * AssignmentCheck  Warns about variables that may be read before they are assigned (a bitset dataflow).
+ * Interpreter      Runs a program from its AST, with variables in int slots ("-run").
+ * Optimizer        Rewrites the AST before it runs through OptimizerPasses, used with 'optimizeAST':
+ *                  ConstantFolding, Simplification (identities) and BranchRemoval (constant conditions).
+ * Propagation      Constants and copies known in each variable, kept by the Optimizer along the program.
+ * IR               Three-address code in basic blocks (a control-flow graph), with a liveness analysis.
+ * DeadStores       Removes assignments and declarations whose value is never used, found through the IR.
+ * Bytecode         A program compiled from its AST to an int array of instructions.
+ * VM               Runs Bytecode with a switch-dispatched loop over a frame of int slots, used with 'runType'.
+ * ClassCompiler    Compiles a program to a hidden JVM class, used with 'runType'.
+ * OutputSink       Buffered output (StreamSink, MemorySink, DiscardSink), used with 'outputType'.
+ * BatchResult      Output and counts of one file analyzed with "-batch".
+ * LineIndex        Line start offsets, converts offsets to line and character positions.
+ * TokenKind        Enumeration of token kinds.
+ * Token            Object that contains kind, offset, and value values.
+ * SymbolTable      Interning table giving each identifier an int symbol id.
+ * SourceBuffer     NIO character source that allows peeking.
+ * TableLexer       Table-driven lexer, selected with 'lexerType'.
+ * TokenBuffer      All tokens of a file in parallel arrays, used with 'preLex'. Can be re-lexed after an edit.
  * Project2         Assignment.
  * 
  * 
  */
 
-import java.io.File;
-import java.io.FileNotFoundException;
-import java.util.Scanner;
+import java.io.ByteArrayOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * class ASTBuilder
+ * ASTBuilder is what the parser builds the AST through.
+ * Nodes are referred to by int handles (NIL for a missing node), so the
+ * same parser methods can build either a tree of ASTNode objects (AST)
+ * or the flat ASTArena.
+ */
+abstract class ASTBuilder {
+    static final int NIL = -1;
+
+    abstract int node(int kind, int offset); // Node of a kind code from AST
+    abstract int leaf(String text, int offset, int symbol); // LEAF node, symbol is -1 unless an identifier
+    abstract void setChild(int parent, int slot, int child);
+    abstract void setNot(int node); // Marks an OP_NOT node as "not" (otherwise it is "-")
+    void span(int node, int start, int next) {} // Source of a statement, kept only by ASTArena
+}
 
 /**
  * class AST
  * Data structure for parser
+ * Builds the AST out of ASTNode objects.
  */
-class AST {
-    static List<String> treeNodes = new ArrayList<>(List.of(
+class AST extends ASTBuilder {
+    static final List<String> treeNodes = List.of( // Read-only, shared by every run
         "DECL",
         "INT_LITERAL",
         "BOOL_LITERAL",
@@ -75,59 +142,89 @@ class AST {
         "PRINT",
         "PRINT_INT",
         "PRINT_BOOL"
-        ));
-
-    ASTNode root; // Root node of tree
-    ASTNode currentNode; // Current node for sub-AST to link to (usually root of sub-tree)
+        );
+
+    // Kind codes used with ASTBuilder: the index of the kind in treeNodes,
+    // and LEAF for identifiers, literal values and type names (the kind is their text)
+    static final int DECL = 0;
+    static final int INT_LITERAL = 1;
+    static final int BOOL_LITERAL = 2;
+    static final int VARIABLE = 3;
+    static final int SEQ = 4;
+    static final int ASSIGNMENT = 5;
+    static final int IF = 6;
+    static final int WHILE = 7;
+    static final int OP_NOT = 8;
+    static final int OP_LT = 9;
+    static final int OP_EQLT = 10;
+    static final int OP_EQ = 11;
+    static final int OP_NOTEQ = 12;
+    static final int OP_GTEQ = 13;
+    static final int OP_GT = 14;
+    static final int OP_PLUS = 15;
+    static final int OP_MINUS = 16;
+    static final int OP_OR = 17;
+    static final int OP_MULT = 18;
+    static final int OP_DIV = 19;
+    static final int OP_AND = 20;
+    static final int PRINT = 21;
+    static final int PRINT_INT = 22;
+    static final int PRINT_BOOL = 23;
+    static final int LEAF = 24;
+
+    ASTNode[] nodes; // Node of each handle given out by node() and leaf()
+    int count;
 
     // Constructor
     public AST() {
-        root = null;
-        currentNode = null;
+        nodes = new ASTNode[256];
+        count = 0;
     }
-    
+
     /**
-     * add()
-     * Adds either a node or a sub-tree to the existing AST.
+     * node(), leaf()
+     * Creates an ASTNode and returns its handle.
      */
-    public void add(ASTNode node) {
-        // If AST is empty, set the root to given node
-        if(root == null) {
-            root = node;
-            currentNode = node;
-        } else {
-            // Otherwise, determine where to link the node
-            if(isTreeNode(node.kind)) {
-                if(currentNode.child0 == null)
-                    currentNode.child0 = node;
-                else
-                    currentNode.child1 = node;
-                // Excluding IF's child2 'else' case
-            }
-        }
+    int node(int kind, int offset) {
+        ASTNode node = new ASTNode(treeNodes.get(kind), offset);
+        node.code = kind;
+        return add(node);
     }
-    public void add(AST sub) {
-        // If AST is empty, set the root to given node
-        if(root == null) {
-            root = sub.root;
-            currentNode = sub.currentNode;
-        } else {
-            // Otherwise, link the sub-tree to the middle child of current node
-            currentNode.child1 = sub.root;
-            currentNode = sub.currentNode;
+    int leaf(String text, int offset, int symbol) {
+        return add(new ASTNode(text, offset, symbol));
+    }
+
+    /**
+     * setChild()
+     * Links the child node (or NIL) to slot 0, 1 or 2 of the parent node.
+     */
+    void setChild(int parent, int slot, int child) {
+        ASTNode p = nodes[parent];
+        ASTNode c = (child == NIL) ? null : nodes[child];
+        switch(slot) {
+            case 0: p.child0 = c; break;
+            case 1: p.child1 = c; break;
+            case 2: p.child2 = c; break;
         }
     }
-    
+
+    void setNot(int node) {
+        nodes[node].not = true;
+    }
+
     /**
-     * isTreeNode()
-     * Determines if the node is derived from non-terminal symbol
-     * by checking the static list of symbols.
+     * get()
+     * Returns the ASTNode of a handle, null for NIL.
      */
-    boolean isTreeNode(String sym) {
-        for(String s : treeNodes) // is a non-terminal symbol (VARIABLE, DECL, SEQ, IF, ...)
-            if(s.equals(sym))
-                return true;
-        return false;
+    ASTNode get(int handle) {
+        return (handle == NIL) ? null : nodes[handle];
+    }
+
+    int add(ASTNode node) {
+        if(count == nodes.length)
+            nodes = Arrays.copyOf(nodes, count * 2);
+        nodes[count] = node;
+        return count++;
     }
 }
 
@@ -139,20 +236,30 @@ class AST {
  */
 class ASTNode {
     public String kind;
-    public String pos;
+    public int offset; // Source offset, shown as line:letter through LineIndex
+    public int symbol; // Symbol id when the node is an identifier, otherwise -1
     public ASTNode  child0, child1, child2;
+    public int code = AST.LEAF; // Kind code from AST
+    public int slot = -1; // Variable slot (set by SemanticAnalyzer), or value of a literal (set by Interpreter)
+    public boolean bool = false; // Expression is boolean (set by SemanticAnalyzer)
+    public boolean not = false; // OP_NOT is "not" rather than "-" (set by the parser)
 
     // Constructor
     public ASTNode() {
         kind = "";
-        pos = "";
+        offset = 0;
+        symbol = -1;
         child0 = null;
         child1 = null;
         child2 = null;
     }
-    public ASTNode(String name, String apos) {
+    public ASTNode(String name, int aoffset) {
+        this(name, aoffset, -1);
+    }
+    public ASTNode(String name, int aoffset, int asymbol) {
         kind = name;
-        pos = apos;
+        offset = aoffset;
+        symbol = asymbol;
         child0 = null;
         child1 = null;
         child2 = null;
@@ -160,171 +267,3998 @@ class ASTNode {
 }
 
 /**
- * class Position
+ * class ASTArena
+ * ASTArena is a compact AST kept in parallel int arrays instead of
+ * ASTNode objects: kind code, source offset, three child indices and
+ * a payload (the symbol id of a LEAF's text, or 1 for an OP_NOT that
+ * is "not" rather than "-"). The arrays only grow, and reset() keeps
+ * them, so one arena is reused from file to file.
+ * Statements also keep their span: where they start and where the
+ * token after them starts, so an edit can be mapped to the statement
+ * it falls in (see Project2.reparse()).
  * 
- * Position stores the line and letter position
- * and overrides toString() to convert line and letter
- * integers to a string.
+ * For reparse() the tree is indexed. Statements, declarations and SEQ
+ * nodes are anchors, kept in source order with their positions in a
+ * gap buffer, and every other node (and a statement's span end) is
+ * stored relative to the anchor above it. The gap is kept at the last
+ * edit and the positions past it are stored less 'shift', so an edit
+ * moves all later nodes by changing 'shift' alone, and the statements
+ * around an edit are found by binary search and parent links.
  */
-class Position {
-    int line;
-    int letter;
+class ASTArena extends ASTBuilder {
+    static final int DEAD = -1; // Kind code of a node replaced by reparse()
+
+    int[] kinds;
+    int[] offsets; // Relative to the position of the owner once indexed
+    int[] child0, child1, child2;
+    int[] payloads;
+    int[] spanStarts, spanNexts; // -1 unless a statement
+    int[] parents;
+    int[] owners; // Anchor of an indexed node (itself for an anchor), or -1
+    int[] outers; // Innermost statement around an anchor, or NIL
+    int[] places; // Index of an anchor in 'order'
+    int size;
+    SymbolTable symbols; // Spellings of LEAF payloads
+
+    // The index: anchors in source order and their positions, with a gap
+    int[] order, positions;
+    int gap, gapLength;
+    int shift; // Added to the positions past the gap
+    boolean indexed;
 
     // Constructor
-    public Position() {
-        this.line = 1;
-        this.letter = 0;
+    public ASTArena() {
+        kinds = new int[1024];
+        offsets = new int[1024];
+        child0 = new int[1024];
+        child1 = new int[1024];
+        child2 = new int[1024];
+        payloads = new int[1024];
+        spanStarts = new int[1024];
+        spanNexts = new int[1024];
+        parents = new int[1024];
+        owners = new int[1024];
+        outers = new int[1024];
+        places = new int[1024];
+        order = new int[256];
+        positions = new int[256];
+        size = 0;
     }
-    public Position(int line, int letter) {
-        this.line = line;
-        this.letter = letter;
+
+    /**
+     * reset()
+     * Empties the arena for the next file, keeping its arrays.
+     */
+    public void reset(SymbolTable symbols) {
+        this.symbols = symbols;
+        size = 0;
+        indexed = false;
     }
 
-    @Override
-    public String toString() {
-        return "" + line + ":" + letter;
+    int node(int kind, int offset) {
+        return add(kind, offset, -1);
+    }
+    int leaf(String text, int offset, int symbol) {
+        return add(AST.LEAF, offset, (symbol >= 0) ? symbol : symbols.intern(text));
+    }
+    void setChild(int parent, int slot, int child) {
+        switch(slot) {
+            case 0: child0[parent] = child; break;
+            case 1: child1[parent] = child; break;
+            case 2: child2[parent] = child; break;
+        }
+        if(child != NIL)
+            parents[child] = parent;
+    }
+
+    void setNot(int node) {
+        payloads[node] = 1;
+    }
+
+    void span(int node, int start, int next) {
+        spanStarts[node] = start;
+        spanNexts[node] = next;
+    }
+
+    /**
+     * index()
+     * Indexes the tree below root, so it can be edited with shift() and
+     * replace(). The offsets it holds are those of the current source.
+     */
+    void index(int root) {
+        gap = 0;
+        gapLength = order.length;
+        shift = 0;
+        insert(root, NIL);
+        indexed = true;
+    }
+
+    /**
+     * insert()
+     * Makes the offsets below root relative to their anchors and puts the
+     * anchors in the gap, which must be where they go in source order.
+     */
+    void insert(int root, int outer) {
+        long[] found = new long[16]; // Position and node of each anchor
+        int count = 0;
+
+        // Walk with the anchor (and its position) and the statement above each node
+        int[] stack = new int[64];
+        int top = 0;
+        stack[top++] = root;
+        stack[top++] = NIL;
+        stack[top++] = 0;
+        stack[top++] = outer;
+        while(top > 0) {
+            outer = stack[--top];
+            int position = stack[--top];
+            int owner = stack[--top];
+            int n = stack[--top];
+            boolean statement = spanNexts[n] >= 0;
+            if(statement || kinds[n] == AST.SEQ || kinds[n] == AST.DECL) {
+                owner = n;
+                position = statement ? spanStarts[n] : offsets[n];
+                outers[n] = outer;
+                if(statement) {
+                    spanNexts[n] -= position;
+                    outer = n;
+                }
+                if(count == found.length)
+                    found = Arrays.copyOf(found, count * 2);
+                found[count++] = ((long) position << 32) | n;
+            }
+            owners[n] = owner;
+            offsets[n] -= position;
+
+            if(top + 12 > stack.length)
+                stack = Arrays.copyOf(stack, stack.length * 2);
+            for(int slot = 0; slot < 3; slot++) {
+                int child = child(n, slot);
+                if(child == NIL) continue;
+                stack[top++] = child;
+                stack[top++] = owner;
+                stack[top++] = position;
+                stack[top++] = outer;
+            }
+        }
+
+        Arrays.sort(found, 0, count);
+        if(gapLength < count) {
+            // Grow, moving the anchors past the gap to the end
+            int capacity = Math.max(order.length * 2, order.length - gapLength + count);
+            int tail = order.length - gap - gapLength;
+            int[] newOrder = Arrays.copyOf(order, capacity);
+            int[] newPositions = Arrays.copyOf(positions, capacity);
+            System.arraycopy(order, gap + gapLength, newOrder, capacity - tail, tail);
+            System.arraycopy(positions, gap + gapLength, newPositions, capacity - tail, tail);
+            for(int i = capacity - tail; i < capacity; i++)
+                places[newOrder[i]] = i;
+            gapLength += capacity - order.length;
+            order = newOrder;
+            positions = newPositions;
+        }
+        for(int i = 0; i < count; i++) {
+            int n = (int) found[i];
+            order[gap] = n;
+            positions[gap] = (int) (found[i] >>> 32);
+            places[n] = gap++;
+        }
+        gapLength -= count;
+    }
+
+    // Moves the gap to before the anchor at index i (in source order)
+    void moveGap(int i) {
+        for(; gap > i; gap--) {
+            int to = gap - 1 + gapLength;
+            order[to] = order[gap - 1];
+            positions[to] = positions[gap - 1] - shift;
+            places[order[to]] = to;
+        }
+        for(; gap < i; gap++) {
+            int from = gap + gapLength;
+            order[gap] = order[from];
+            positions[gap] = positions[from] + shift;
+            places[order[gap]] = gap;
+        }
+    }
+
+    /**
+     * find()
+     * Returns the index, in source order, of the last anchor at or before
+     * offset (before offset if not 'at'), or -1 if there is none.
+     */
+    int find(int offset, boolean at) {
+        int low = 0, high = order.length - gapLength - 1, found = -1;
+        while(low <= high) {
+            int mid = (low + high) >>> 1;
+            int position = (mid < gap) ? positions[mid] : positions[mid + gapLength] + shift;
+            if(position < offset || (at && position == offset)) {
+                found = mid;
+                low = mid + 1;
+            } else
+                high = mid - 1;
+        }
+        return found;
     }
-};
+
+    // Position of an anchor
+    int position(int anchor) {
+        int i = places[anchor];
+        return (i < gap) ? positions[i] : positions[i] + shift;
+    }
+
+    /**
+     * enclosing()
+     * Returns the statements whose span holds the characters from offset to
+     * end, innermost first. The token after each must start at or past end,
+     * so it is not touched by the edit.
+     * 
+     * Each holds the last anchor before offset, or at it, so they are found
+     * by going up from those two to the statements around them.
+     */
+    int[] enclosing(int offset, int end) {
+        int[] found = new int[8];
+        int count = 0;
+        for(int i : new int[] {find(offset, true), find(offset, false)}) {
+            if(i < 0) continue;
+            int anchor = order[(i < gap) ? i : i + gapLength];
+            int s = (spanNexts[anchor] >= 0) ? anchor : outers[anchor];
+            for(; s != NIL && !contains(found, count, s); s = outers[s]) {
+                if(spanStart(s) > offset || spanNext(s) < end)
+                    continue;
+                if(count == found.length)
+                    found = Arrays.copyOf(found, count * 2);
+
+                // Spans of enclosing statements nest, so order by length
+                int j = count++;
+                for(; j > 0 && spanNext(found[j - 1]) - spanStart(found[j - 1]) > spanNext(s) - spanStart(s); j--)
+                    found[j] = found[j - 1];
+                found[j] = s;
+            }
+        }
+        return Arrays.copyOf(found, count);
+    }
+
+    // The statements around one found from the first anchor are found too
+    static boolean contains(int[] found, int count, int s) {
+        for(int i = 0; i < count; i++)
+            if(found[i] == s) return true;
+        return false;
+    }
+
+    /**
+     * shift()
+     * Moves the nodes after an edit at offset, which removed the characters
+     * up to end, by the change in length: the gap is moved to end and the
+     * span ends of the enclosing statements before it are moved.
+     */
+    void shift(int offset, int end, int delta, int[] enclosing) {
+        moveGap(find(end, false) + 1);
+        for(int s : enclosing)
+            if(places[s] < gap)
+                spanNexts[s] += delta;
+        shift += delta;
+    }
+
+    /**
+     * replace()
+     * Puts node in the place of old, which is marked DEAD with its subtree,
+     * and returns the new root (node, if old was the root).
+     */
+    int replace(int root, int old, int node) {
+        int parent = parents[old];
+        if(parent != NIL) {
+            if(child0[parent] == old) child0[parent] = node;
+            else if(child1[parent] == old) child1[parent] = node;
+            else child2[parent] = node;
+        }
+        parents[node] = parent;
+
+        // Without recursion, since a body can be a long SEQ chain
+        int[] stack = new int[64];
+        int top = 0;
+        int anchors = 0;
+        stack[top++] = old;
+        while(top > 0) {
+            int n = stack[--top];
+            kinds[n] = DEAD;
+            if(owners[n] == n) anchors ++;
+            if(top + 3 > stack.length)
+                stack = Arrays.copyOf(stack, stack.length * 2);
+            if(child0[n] != NIL) stack[top++] = child0[n];
+            if(child1[n] != NIL) stack[top++] = child1[n];
+            if(child2[n] != NIL) stack[top++] = child2[n];
+        }
+
+        // The anchors of old come one after another from old, drop them
+        moveGap((places[old] < gap) ? places[old] : places[old] - gapLength);
+        gapLength += anchors;
+        insert(node, outers[old]);
+        return (root == old) ? node : root;
+    }
+
+    int kind(int node) { return kinds[node]; }
+    int offset(int node) { return (owners[node] < 0) ? offsets[node] : position(owners[node]) + offsets[node]; }
+    int spanStart(int node) { return (owners[node] < 0) ? spanStarts[node] : position(node); }
+    int spanNext(int node) { return (owners[node] < 0) ? spanNexts[node] : position(node) + spanNexts[node]; }
+    int payload(int node) { return payloads[node]; }
+    int child(int node, int slot) {
+        return (slot == 0) ? child0[node] : (slot == 1) ? child1[node] : child2[node];
+    }
+
+    /**
+     * text()
+     * Returns what the AST display shows as the kind of the node.
+     */
+    String text(int node) {
+        return (kinds[node] == AST.LEAF) ? symbols.name(payloads[node]) : AST.treeNodes.get(kinds[node]);
+    }
+
+    int add(int kind, int offset, int payload) {
+        if(size == kinds.length) {
+            int capacity = size * 2;
+            kinds = Arrays.copyOf(kinds, capacity);
+            offsets = Arrays.copyOf(offsets, capacity);
+            child0 = Arrays.copyOf(child0, capacity);
+            child1 = Arrays.copyOf(child1, capacity);
+            child2 = Arrays.copyOf(child2, capacity);
+            payloads = Arrays.copyOf(payloads, capacity);
+            spanStarts = Arrays.copyOf(spanStarts, capacity);
+            spanNexts = Arrays.copyOf(spanNexts, capacity);
+            parents = Arrays.copyOf(parents, capacity);
+            owners = Arrays.copyOf(owners, capacity);
+            outers = Arrays.copyOf(outers, capacity);
+            places = Arrays.copyOf(places, capacity);
+        }
+        kinds[size] = kind;
+        offsets[size] = offset;
+        child0[size] = NIL;
+        child1[size] = NIL;
+        child2[size] = NIL;
+        payloads[size] = payload;
+        spanStarts[size] = -1;
+        spanNexts[size] = -1;
+        parents[size] = NIL;
+        owners[size] = -1;
+        return size++;
+    }
+}
 
 /**
- * class Token
- * 
- * Token holds the position, kind, and value
- * of the current token being processed.
+ * class ASTPrinter
+ * ASTPrinter displays the AST by in-order traversal, one row per node.
+ * The traversal keeps its own stack, so long SEQ chains cannot overflow
+ * the call stack, and rows are padded straight into an OutputSink.
+ * Columns are left-justified in 13, 8, 13, 13 and 13 characters.
  */
-class Token {
-    Position position;
-    String kind;
-    String value;
+class ASTPrinter {
+    static final int[] WIDTHS = {13, 8, 13, 13, 13};
+
+    OutputSink out;
+    LineIndex lines;
+    ASTNode[] nodeStack; // Traversal stacks, with a flag set once child0 has been pushed
+    int[] handleStack;
+    boolean[] expanded;
 
     // Constructor
-    public Token() {
-        this.position = new Position();
+    public ASTPrinter(OutputSink out) {
+        this.out = out;
+        nodeStack = new ASTNode[256];
+        handleStack = new int[256];
+        expanded = new boolean[256];
     }
-    public Token(Position position, String kind, String value) {
-        this.position = position;
-        this.kind = kind;
-        this.value = value;
+
+    /**
+     * header()
+     * Adds the row of column titles.
+     */
+    public void header() {
+        out.column("KIND", WIDTHS[0]);
+        out.column("POS", WIDTHS[1]);
+        out.column("CHILD0", WIDTHS[2]);
+        out.column("CHILD1", WIDTHS[3]);
+        out.column("CHILD2", WIDTHS[4]);
+        out.println();
     }
 
-    public String getKind() { return kind; }
-    public void setKind(String kind) { this.kind = kind; }
-    public String getValue() { return value; }
-    public Integer getValueInt() { return Integer.parseInt(value); }
-    public void setValue(String value) { this.value = value; }
-    public String getPosition() { return position.toString(); }
-    public void setPositionPtr(Position position) { this.position = position; }
-    public void setPosition(int line, int letter) { this.position.line = line; this.position.letter = letter; }
-    public void incrementLine(int n) { this.position.line += n; }
-    public void incrementLetter(int n) { this.position.letter += n; }
-    public void setLine(int n) { this.position.line = n; }
-    public void setLetter(int n) { this.position.letter = n; }
-    public void decrementLine(int n) { this.position.line += n; }
-    public void decrementLetter(int n) { this.position.letter += n; }
-};
+    /**
+     * print()
+     * Adds a row for every node below root, in-order (child0, node, child1, child2).
+     * A node is pushed twice: first to push its children, then to print it
+     * after child0 is done.
+     */
+    public void print(ASTNode root, LineIndex lines) {
+        this.lines = lines;
+        int top = 0;
+        if(root != null) top = push(root, 0, false);
+        while(top > 0) {
+            ASTNode node = nodeStack[--top];
+            if(expanded[top]) {
+                row(node.kind, node.offset, kind(node.child0), kind(node.child1), kind(node.child2));
+                continue;
+            }
+            if(node.child2 != null) top = push(node.child2, top, false);
+            if(node.child1 != null) top = push(node.child1, top, false);
+            top = push(node, top, true);
+            if(node.child0 != null) top = push(node.child0, top, false);
+        }
+        Arrays.fill(nodeStack, null);
+    }
+    public void print(ASTArena arena, int root, LineIndex lines) {
+        this.lines = lines;
+        int top = 0;
+        if(root != ASTBuilder.NIL) top = push(root, 0, false);
+        while(top > 0) {
+            int node = handleStack[--top];
+            int child0 = arena.child(node, 0);
+            int child1 = arena.child(node, 1);
+            int child2 = arena.child(node, 2);
+            if(expanded[top]) {
+                row(arena.text(node), arena.offset(node), text(arena, child0), text(arena, child1), text(arena, child2));
+                continue;
+            }
+            if(child2 != ASTBuilder.NIL) top = push(child2, top, false);
+            if(child1 != ASTBuilder.NIL) top = push(child1, top, false);
+            top = push(node, top, true);
+            if(child0 != ASTBuilder.NIL) top = push(child0, top, false);
+        }
+    }
+
+    String kind(ASTNode node) {
+        return (node != null) ? node.kind : "NIL";
+    }
+    String text(ASTArena arena, int node) {
+        return (node != ASTBuilder.NIL) ? arena.text(node) : "NIL";
+    }
+
+    int push(ASTNode node, int top, boolean isExpanded) {
+        if(top == nodeStack.length) grow();
+        nodeStack[top] = node;
+        expanded[top] = isExpanded;
+        return top + 1;
+    }
+    int push(int node, int top, boolean isExpanded) {
+        if(top == handleStack.length) grow();
+        handleStack[top] = node;
+        expanded[top] = isExpanded;
+        return top + 1;
+    }
+    void grow() {
+        int capacity = expanded.length * 2;
+        nodeStack = Arrays.copyOf(nodeStack, capacity);
+        handleStack = Arrays.copyOf(handleStack, capacity);
+        expanded = Arrays.copyOf(expanded, capacity);
+    }
 
+    void row(String kind, int offset, String child0, String child1, String child2) {
+        out.column(kind, WIDTHS[0]);
+        out.position(lines, offset, WIDTHS[1]);
+        out.column(child0, WIDTHS[2]);
+        out.column(child1, WIDTHS[3]);
+        out.column(child2, WIDTHS[4]);
+        out.println();
+    }
+}
 
 /**
- * class ParseScanner
+ * class SemanticAnalyzer
+ * Resolves every VARIABLE to its DECL and checks types, over either kind of AST.
+ * Each body is a scope: an open-addressed hash table from symbol id to
+ * slot. The tables form a stack and a name is looked up from the innermost
+ * body out, so a declaration in an inner body hides the outer variable
+ * until the body ends (hiding.txt, ab.txt). Entries are stamped with the
+ * body that made them, so opening a body just moves to the next table with
+ * a new stamp and closing one steps back; neither clears anything.
+ * Undeclared and redeclared names are reported. DECL and VARIABLE nodes
+ * get their slot (an ASTNode slot, or the payload in an ASTArena). Bodies
+ * side by side share slots, so maxSlots is what a run needs.
  * 
- * ParseScanner is a wrapper for the Scanner class.
- * Scanner does not have a peek() method, so I made
- * a wrapper that allows it.
- * A StringBuilder is used as a buffer to hold characters
- * that were put back, usually be the peek() method.
+ * Types are checked in the same walk, since a variable's type is at hand
+ * when its name is resolved: arithmetic and relational operators take int,
+ * "and" and "or" take bool, "=" and "!=" need the same type on both sides,
+ * and conditions are bool. "-" takes int and "not" takes bool (both are
+ * OP_NOT, marked by the parser). Mismatches are reported, and an expression with
+ * an error has no type, so it is not reported again further up. In an
+ * ASTNode tree every expression is marked boolean or not, and PRINT
+ * becomes PRINT_INT or PRINT_BOOL (its code, the displayed kind stays).
  */
-class ParseScanner {
-    final Scanner scanner;
-    StringBuilder buffer;
+class SemanticAnalyzer {
+    final OutputSink out;
+    final LineIndex lines;
+    int errorCount = 0;
+    int maxSlots = 0;
+
+    // Types
+    static final int INT = 0;
+    static final int BOOL = 1;
+    static final int NONE = 2; // Of an expression with an error
+    static final String[] TYPE_NAMES = {"int", "bool"};
+    static final String[] OPERATORS = {"<", "=<", "=", "!=", ">=", ">", "+", "-", "or", "*", "/", "and"}; // OP_LT to OP_AND
+
+    // Scope stack, one table per open body
+    int depth = -1;
+    int[][] keys = new int[8][]; // Symbol ids
+    int[][] slots = new int[8][];
+    int[][] stamps = new int[8][]; // Body that made the entry
+    int[] stamp = new int[8]; // Body open at each depth
+    int[] counts = new int[8];
+    int[] firstSlots = new int[8]; // Slot count when the body opened
+    int nextStamp = 1;
+    int slotCount = 0;
+    boolean[] boolSlots = new boolean[16];
 
     // Constructor
-    public ParseScanner(Scanner scan) {
-        this.scanner = scan;
-        this.scanner.useDelimiter("");
-        this.buffer = new StringBuilder();
+    public SemanticAnalyzer(OutputSink out, LineIndex lines) {
+        this.out = out;
+        this.lines = lines;
     }
 
     /**
-     * next()
-     * Checks the buffer first for characters,
-     * then scans the input.
+     * analyze()
+     * Checks the program body and returns whether it has no errors.
      */
-    public char next() {
-        // If buffer is empty, read from scanner
-        // if(buffer.isEmpty()) {
-        if(buffer.length() == 0) {
-            return scanner.next().charAt(0);
-        } else {
-            // Otherwise read last char in buffer
-            char c = buffer.charAt(buffer.length() - 1);
-            buffer.setLength(buffer.length() - 1); // Clear buffer
-            return c;
+    public boolean analyze(ASTNode root) {
+        body(root);
+        return errorCount == 0;
+    }
+    public boolean analyze(ASTArena tree, int root) {
+        body(tree, root);
+        return errorCount == 0;
+    }
+
+    // ASTNode tree
+
+    void body(ASTNode n) {
+        open();
+        while(n.code == AST.SEQ && n.child0.code == AST.DECL) {
+            ASTNode id = n.child0.child0;
+            n.child0.slot = declare(id.symbol, id.kind, id.offset, n.child0.child1.kind.equals("bool"));
+            n = n.child1;
         }
+        for(ASTNode statement : Interpreter.statements(n))
+            statement(statement);
+        close();
     }
-    
+
+    void statement(ASTNode n) {
+        switch(n.code) {
+            case AST.ASSIGNMENT:
+                assignment(n.offset, n.child0.child0.kind, expression(n.child0), expression(n.child1));
+                break;
+            case AST.IF:
+                expect(n.offset, "\'if\' condition", BOOL, expression(n.child0));
+                body(n.child1);
+                if(n.child2 != null)
+                    body(n.child2);
+                break;
+            case AST.WHILE:
+                expect(n.offset, "\'while\' condition", BOOL, expression(n.child0));
+                body(n.child1);
+                break;
+            default: // PRINT
+                n.code = (expression(n.child0) == BOOL) ? AST.PRINT_BOOL : AST.PRINT_INT;
+                break;
+        }
+    }
+
+    int expression(ASTNode n) {
+        int type;
+        switch(n.code) {
+            case AST.INT_LITERAL: type = INT; break;
+            case AST.BOOL_LITERAL: type = BOOL; break;
+            case AST.VARIABLE:
+                n.slot = lookup(n.child0.symbol, n.child0.kind, n.offset);
+                type = variableType(n.slot);
+                break;
+            case AST.OP_NOT: type = unary(n.not, n.offset, expression(n.child0)); break;
+            default: type = operator(n.code, n.offset, expression(n.child0), expression(n.child1)); break;
+        }
+        n.bool = (type == BOOL);
+        return type;
+    }
+
+    // ASTArena, the same walk by handles
+
+    void body(ASTArena tree, int n) {
+        open();
+        while(tree.kinds[n] == AST.SEQ && tree.kinds[tree.child0[n]] == AST.DECL) {
+            int decl = tree.child0[n];
+            int id = tree.child0[decl];
+            tree.payloads[decl] = declare(tree.payloads[id], tree.text(id), tree.offset(id), tree.text(tree.child1[decl]).equals("bool"));
+            n = tree.child1[n];
+        }
+
+        // Statements nest to the left, one SEQ per ";"
+        List<Integer> statements = new ArrayList<>();
+        while(tree.kinds[n] == AST.SEQ) {
+            statements.add(tree.child1[n]);
+            n = tree.child0[n];
+        }
+        statements.add(n);
+        for(int i = statements.size() - 1; i >= 0; i--)
+            statement(tree, statements.get(i));
+        close();
+    }
+
+    void statement(ASTArena tree, int n) {
+        switch(tree.kinds[n]) {
+            case AST.ASSIGNMENT:
+                int variable = tree.child0[n];
+                assignment(tree.offset(n), tree.text(tree.child0[variable]), expression(tree, variable), expression(tree, tree.child1[n]));
+                break;
+            case AST.IF:
+                expect(tree.offset(n), "\'if\' condition", BOOL, expression(tree, tree.child0[n]));
+                body(tree, tree.child1[n]);
+                if(tree.child2[n] != ASTBuilder.NIL)
+                    body(tree, tree.child2[n]);
+                break;
+            case AST.WHILE:
+                expect(tree.offset(n), "\'while\' condition", BOOL, expression(tree, tree.child0[n]));
+                body(tree, tree.child1[n]);
+                break;
+            default: // PRINT, which keeps its kind for display
+                expression(tree, tree.child0[n]);
+                break;
+        }
+    }
+
+    int expression(ASTArena tree, int n) {
+        int kind = tree.kinds[n];
+        switch(kind) {
+            case AST.INT_LITERAL: return INT;
+            case AST.BOOL_LITERAL: return BOOL;
+            case AST.VARIABLE:
+                int id = tree.child0[n];
+                tree.payloads[n] = lookup(tree.payloads[id], tree.text(id), tree.offset(n));
+                return variableType(tree.payloads[n]);
+            case AST.OP_NOT: return unary(tree.payloads[n] == 1, tree.offset(n), expression(tree, tree.child0[n]));
+            default: return operator(kind, tree.offset(n), expression(tree, tree.child0[n]), expression(tree, tree.child1[n]));
+        }
+    }
+
+    // Types
+
+    int variableType(int slot) {
+        if(slot < 0) return NONE;
+        return boolSlots[slot] ? BOOL : INT;
+    }
+
+    // Checks the operand of "not" (bool) or "-" (int) and returns its type
+    int unary(boolean not, int offset, int operand) {
+        int type = not ? BOOL : INT;
+        return expect(offset, not ? "\'not\'" : "\'-\'", type, operand) ? type : NONE;
+    }
+
     /**
-     * hasNext()
-     * Checks the buffer first, then the input
-     * for an available character.
+     * operator()
+     * Checks the operand types of a binary operator and returns its type.
      */
-    public boolean hasNext() {
-        // if(buffer.isEmpty()) {
-        if(buffer.length() == 0) {
-            // Buffer is empty, so check scanner
-            return scanner.hasNext();
-        // } else if(!buffer.isEmpty()) {
-        } else if(buffer.length() != 0) {
-            // Buffer not empty
-            return true;
+    int operator(int kind, int offset, int left, int right) {
+        String name = "\'" + OPERATORS[kind - AST.OP_LT] + "\'";
+        if(kind == AST.OP_EQ || kind == AST.OP_NOTEQ) {
+            if(left != right && left != NONE && right != NONE) {
+                error(offset, name + " compares " + TYPE_NAMES[left] + " with " + TYPE_NAMES[right]);
+                return NONE;
+            }
+            return BOOL;
         }
-        // Buffer and scanner are both empty
+
+        int operand = (kind == AST.OP_OR || kind == AST.OP_AND) ? BOOL : INT;
+        if(!expect(offset, name, operand, left) || !expect(offset, name, operand, right))
+            return NONE;
+        return (kind <= AST.OP_GT) ? BOOL : operand;
+    }
+
+    void assignment(int offset, String name, int variable, int value) {
+        if(variable != value && variable != NONE && value != NONE)
+            error(offset, "cannot assign " + TYPE_NAMES[value] + " to " + TYPE_NAMES[variable] + " \'" + name + "\'");
+    }
+
+    // Reports a type other than the expected one, and returns false
+    boolean expect(int offset, String what, int type, int found) {
+        if(found == type || found == NONE)
+            return true;
+        error(offset, what + " needs " + TYPE_NAMES[type] + ", but found " + TYPE_NAMES[found]);
         return false;
     }
-    
+
+    // Scopes
+
+    void open() {
+        depth ++;
+        if(depth == stamp.length) {
+            int capacity = depth * 2;
+            keys = Arrays.copyOf(keys, capacity);
+            slots = Arrays.copyOf(slots, capacity);
+            stamps = Arrays.copyOf(stamps, capacity);
+            stamp = Arrays.copyOf(stamp, capacity);
+            counts = Arrays.copyOf(counts, capacity);
+            firstSlots = Arrays.copyOf(firstSlots, capacity);
+        }
+        if(keys[depth] == null) {
+            keys[depth] = new int[16];
+            slots[depth] = new int[16];
+            stamps[depth] = new int[16];
+        }
+        stamp[depth] = nextStamp++; // Every entry left in the table is now stale
+        counts[depth] = 0;
+        firstSlots[depth] = slotCount;
+    }
+
+    void close() {
+        slotCount = firstSlots[depth];
+        depth --;
+    }
+
     /**
-     * peek()
-     * Returns the next character in the input
-     * and puts it back, which goes into the buffer.
-     * Peek() does not check that a character exists,
-     * this must be done prior to calling peek().
+     * declare()
+     * Adds a variable to the innermost body and returns its slot.
      */
-    public char peek() {
-        // Read from scanner
-        char c = this.next();
+    int declare(int symbol, String name, int offset, boolean bool) {
+        if(find(depth, symbol) >= 0)
+            error(offset, "\'" + name + "\' is already declared in this body");
+        if((counts[depth] + 1) * 2 > keys[depth].length)
+            grow(depth);
+
+        int[] table = keys[depth];
+        int mask = table.length - 1;
+        int i = hash(symbol) & mask;
+        while(stamps[depth][i] == stamp[depth] && table[i] != symbol)
+            i = (i + 1) & mask;
+        table[i] = symbol;
+        stamps[depth][i] = stamp[depth];
+        slots[depth][i] = slotCount;
+        counts[depth] ++;
+
+        if(slotCount == boolSlots.length)
+            boolSlots = Arrays.copyOf(boolSlots, slotCount * 2);
+        boolSlots[slotCount] = bool;
+        maxSlots = Math.max(maxSlots, slotCount + 1);
+        return slotCount++;
+    }
 
-        // Putback (into buffer)
-        putback(c);
+    /**
+     * lookup()
+     * Returns the slot of a variable in the innermost body that declares it.
+     */
+    int lookup(int symbol, String name, int offset) {
+        for(int d = depth; d >= 0; d--) {
+            int slot = find(d, symbol);
+            if(slot >= 0)
+                return slot;
+        }
+        error(offset, "\'" + name + "\' is not declared");
+        return -1;
+    }
 
-        // Return char
-        return c;
+    // Probes the table at a depth, an entry of another body ends the search
+    int find(int d, int symbol) {
+        int[] table = keys[d];
+        int mask = table.length - 1;
+        for(int i = hash(symbol) & mask; stamps[d][i] == stamp[d]; i = (i + 1) & mask) {
+            if(table[i] == symbol)
+                return slots[d][i];
+        }
+        return -1;
     }
-    
+
+    void grow(int d) {
+        int[] oldKeys = keys[d], oldSlots = slots[d], oldStamps = stamps[d];
+        int capacity = oldKeys.length * 2;
+        keys[d] = new int[capacity];
+        slots[d] = new int[capacity];
+        stamps[d] = new int[capacity];
+        for(int i = 0; i < oldKeys.length; i++) {
+            if(oldStamps[i] != stamp[d]) continue;
+            int j = hash(oldKeys[i]) & (capacity - 1);
+            while(stamps[d][j] == stamp[d])
+                j = (j + 1) & (capacity - 1);
+            keys[d][j] = oldKeys[i];
+            slots[d][j] = oldSlots[i];
+            stamps[d][j] = stamp[d];
+        }
+    }
+
+    static int hash(int symbol) {
+        int h = symbol * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    void error(int offset, String message) {
+        out.println("Error: at " + lines.format(offset) + ", " + message);
+        errorCount ++;
+    }
+}
+
+/**
+ * class AssignmentCheck
+ * Warns where a variable may be read before it is assigned, after the
+ * SemanticAnalyzer has given every DECL and VARIABLE its slot. Variables
+ * start at 0 when they run, so this is a warning and not an error.
+ * 
+ * The dataflow state is a bitset with one bit per slot: set when the
+ * variable is assigned on every path to this point. A declaration clears
+ * its bit and an assignment sets it. After an IF, a bit is set only if
+ * both branches set it (intersection); an IF without "else" is a branch
+ * that assigns nothing. A WHILE may run its body zero times, and a body
+ * can only add bits, so the set at the top of the loop is the set before
+ * it: the loop's fixed point is reached at once, and one walk over the
+ * statements, in order, solves the whole program. A read with its bit
+ * clear is reported, then counted as assigned so the same variable is not
+ * reported again on that path.
+ */
+class AssignmentCheck {
+    final OutputSink out;
+    final LineIndex lines;
+    long[] assigned; // One bit per slot
+    int warningCount = 0;
+
+    // Constructor
+    public AssignmentCheck(OutputSink out, LineIndex lines, int slotCount) {
+        this.out = out;
+        this.lines = lines;
+        assigned = new long[(Math.max(slotCount, 1) + 63) / 64];
+    }
+
     /**
-     * putback()
-     * Appends the given character to the buffer.
+     * check()
+     * Checks the program body.
      */
-    public void putback(char c) {
-        // Put char at end of string
-        buffer.append(c);
+    public void check(ASTNode root) {
+        body(root);
     }
-    
+    public void check(ASTArena tree, int root) {
+        body(tree, root);
+    }
+
+    // ASTNode tree
+
+    void body(ASTNode n) {
+        while(n.code == AST.SEQ && n.child0.code == AST.DECL) {
+            clear(n.child0.slot);
+            n = n.child1;
+        }
+        for(ASTNode statement : Interpreter.statements(n))
+            statement(statement);
+    }
+
+    void statement(ASTNode n) {
+        switch(n.code) {
+            case AST.ASSIGNMENT:
+                expression(n.child1);
+                set(n.child0.slot);
+                break;
+            case AST.IF:
+                expression(n.child0);
+                long[] before = assigned.clone();
+                body(n.child1);
+                long[] then = assigned;
+                assigned = before;
+                if(n.child2 != null)
+                    body(n.child2);
+                join(then);
+                break;
+            case AST.WHILE:
+                expression(n.child0);
+                long[] entry = assigned.clone();
+                body(n.child1);
+                assigned = entry;
+                break;
+            default: // PRINT_INT and PRINT_BOOL
+                expression(n.child0);
+                break;
+        }
+    }
+
+    void expression(ASTNode n) {
+        if(n.code == AST.VARIABLE)
+            read(n.slot, n.child0.kind, n.offset);
+        else if(n.code != AST.INT_LITERAL && n.code != AST.BOOL_LITERAL) {
+            expression(n.child0);
+            if(n.child1 != null)
+                expression(n.child1);
+        }
+    }
+
+    // ASTArena, the same walk by handles
+
+    void body(ASTArena tree, int n) {
+        while(tree.kinds[n] == AST.SEQ && tree.kinds[tree.child0[n]] == AST.DECL) {
+            clear(tree.payloads[tree.child0[n]]);
+            n = tree.child1[n];
+        }
+
+        // Statements nest to the left, one SEQ per ";"
+        List<Integer> statements = new ArrayList<>();
+        while(tree.kinds[n] == AST.SEQ) {
+            statements.add(tree.child1[n]);
+            n = tree.child0[n];
+        }
+        statements.add(n);
+        for(int i = statements.size() - 1; i >= 0; i--)
+            statement(tree, statements.get(i));
+    }
+
+    void statement(ASTArena tree, int n) {
+        switch(tree.kinds[n]) {
+            case AST.ASSIGNMENT:
+                expression(tree, tree.child1[n]);
+                set(tree.payloads[tree.child0[n]]);
+                break;
+            case AST.IF:
+                expression(tree, tree.child0[n]);
+                long[] before = assigned.clone();
+                body(tree, tree.child1[n]);
+                long[] then = assigned;
+                assigned = before;
+                if(tree.child2[n] != ASTBuilder.NIL)
+                    body(tree, tree.child2[n]);
+                join(then);
+                break;
+            case AST.WHILE:
+                expression(tree, tree.child0[n]);
+                long[] entry = assigned.clone();
+                body(tree, tree.child1[n]);
+                assigned = entry;
+                break;
+            default: // PRINT
+                expression(tree, tree.child0[n]);
+                break;
+        }
+    }
+
+    void expression(ASTArena tree, int n) {
+        int kind = tree.kinds[n];
+        if(kind == AST.VARIABLE)
+            read(tree.payloads[n], tree.text(tree.child0[n]), tree.offset(n));
+        else if(kind != AST.INT_LITERAL && kind != AST.BOOL_LITERAL) {
+            expression(tree, tree.child0[n]);
+            if(tree.child1[n] != ASTBuilder.NIL)
+                expression(tree, tree.child1[n]);
+        }
+    }
+
+    // Bitset
+
+    void read(int slot, String name, int offset) {
+        if((assigned[slot >> 6] & (1L << slot)) != 0)
+            return;
+        out.println("Warning: at " + lines.format(offset) + ", \'" + name + "\' may be read before it is assigned");
+        warningCount ++;
+        set(slot);
+    }
+
+    void set(int slot) {
+        assigned[slot >> 6] |= 1L << slot;
+    }
+
+    void clear(int slot) {
+        assigned[slot >> 6] &= ~(1L << slot);
+    }
+
+    // Keeps the bits set both by the branch taken (then) and by the other
+    void join(long[] then) {
+        for(int w = 0; w < assigned.length; w++)
+            assigned[w] &= then[w];
+    }
+}
+
+/**
+ * class Interpreter
+ * Runs a program from its AST of ASTNodes, after the SemanticAnalyzer
+ * has given each VARIABLE its slot, marked boolean expressions and made
+ * each PRINT a PRINT_INT or PRINT_BOOL. prepare() stores the value of
+ * each literal, so execute() only switches on int kind codes and reads
+ * the slots array. Booleans are 0 and 1; "-" and "not" are both OP_NOT,
+ * told apart by the flag the parser sets for "not".
+ */
+class Interpreter {
+    final OutputSink out;
+    final LineIndex lines;
+    long steps = 0; // Statements executed
+
+    // Variables while running
+    int[] slots;
+    ASTNode[] pending = new ASTNode[64]; // Statements waiting in execute()
+    int top = 0;
+
+    // Constructor
+    public Interpreter(OutputSink out, LineIndex lines, int slotCount) {
+        this.out = out;
+        this.lines = lines;
+        slots = new int[Math.max(slotCount, 1)];
+    }
+
     /**
-     * skipLine()
-     * Clears the buffer and reads the next line
-     * without returning it.
+     * run()
+     * Executes the prepared program body, then shows how long it took.
      */
-    public void skipLine() {
-        // Clear buffer and nextline
-        buffer.setLength(0);
-        scanner.nextLine();
+    public void run(ASTNode root) {
+        long start = System.nanoTime();
+        try {
+            execute(root);
+        } catch(ArithmeticException e) {
+            out.println("Error: " + e.getMessage());
+        }
+        double seconds = Math.max(System.nanoTime() - start, 1) / 1e9;
+        out.println("Program ran " + steps + " statements in " + String.format("%.3f", seconds) + " s ("
+            + String.format("%.0f", steps / seconds) + " statements/sec)\n");
+    }
+
+    /**
+     * prepare()
+     * Readies a body of the analyzed program to run.
+     */
+    void prepare(ASTNode n) {
+        while(n.code == AST.SEQ && n.child0.code == AST.DECL)
+            n = n.child1;
+        for(ASTNode statement : statements(n))
+            prepareStatement(statement);
+    }
+
+    void prepareStatement(ASTNode n) {
+        switch(n.code) {
+            case AST.ASSIGNMENT:
+                prepareExpression(n.child1);
+                break;
+            case AST.IF:
+                prepareExpression(n.child0);
+                prepare(n.child1);
+                if(n.child2 != null)
+                    prepare(n.child2);
+                break;
+            case AST.WHILE:
+                prepareExpression(n.child0);
+                prepare(n.child1);
+                break;
+            default: // PRINT_INT and PRINT_BOOL
+                prepareExpression(n.child0);
+                break;
+        }
+    }
+
+    /**
+     * prepareExpression()
+     * Stores the values of the literals in an expression.
+     */
+    void prepareExpression(ASTNode n) {
+        switch(n.code) {
+            case AST.INT_LITERAL:
+                int value = 0;
+                for(char c : n.child0.kind.toCharArray())
+                    value = value * 10 + (c - '0'); // Wraps like the arithmetic
+                n.slot = value;
+                break;
+            case AST.BOOL_LITERAL:
+                n.slot = n.child0.kind.equals("true") ? 1 : 0;
+                break;
+            case AST.VARIABLE:
+                break;
+            default: // Operators
+                prepareExpression(n.child0);
+                if(n.child1 != null)
+                    prepareExpression(n.child1);
+                break;
+        }
+    }
+
+    /**
+     * statements()
+     * Returns the statements of a Statements chain in order. The chain nests
+     * to the left, one SEQ per ";", so it is walked without recursion.
+     */
+    static List<ASTNode> statements(ASTNode n) {
+        List<ASTNode> list = new ArrayList<>();
+        while(n.code == AST.SEQ) {
+            list.add(n.child1);
+            n = n.child0;
+        }
+        list.add(n);
+        Collections.reverse(list);
+        return list;
+    }
+
+    /**
+     * execute()
+     * Runs a body. Declarations start their variables at 0, and the
+     * Statements chain is unwound onto the pending stack, so a long
+     * chain does not recurse.
+     */
+    void execute(ASTNode n) {
+        while(n.code == AST.SEQ && n.child0.code == AST.DECL) {
+            slots[n.child0.slot] = 0;
+            n = n.child1;
+        }
+
+        int base = top;
+        while(n.code == AST.SEQ) {
+            if(top == pending.length)
+                pending = Arrays.copyOf(pending, top * 2);
+            pending[top++] = n.child1;
+            n = n.child0;
+        }
+        while(true) {
+            statement(n);
+            if(top == base) break;
+            n = pending[--top];
+        }
+    }
+
+    void statement(ASTNode n) {
+        steps ++;
+        switch(n.code) {
+            case AST.ASSIGNMENT:
+                slots[n.child0.slot] = evaluate(n.child1);
+                break;
+            case AST.IF:
+                if(evaluate(n.child0) != 0)
+                    execute(n.child1);
+                else if(n.child2 != null)
+                    execute(n.child2);
+                break;
+            case AST.WHILE:
+                while(evaluate(n.child0) != 0)
+                    execute(n.child1);
+                break;
+            case AST.PRINT_INT:
+                out.println(Integer.toString(evaluate(n.child0)));
+                break;
+            case AST.PRINT_BOOL:
+                out.println((evaluate(n.child0) != 0) ? "true" : "false");
+                break;
+        }
+    }
+
+    int evaluate(ASTNode n) {
+        switch(n.code) {
+            case AST.INT_LITERAL:
+            case AST.BOOL_LITERAL: return n.slot;
+            case AST.VARIABLE: return slots[n.slot];
+            case AST.OP_NOT: return n.not ? 1 - evaluate(n.child0) : -evaluate(n.child0);
+            case AST.OP_LT: return (evaluate(n.child0) < evaluate(n.child1)) ? 1 : 0;
+            case AST.OP_EQLT: return (evaluate(n.child0) <= evaluate(n.child1)) ? 1 : 0;
+            case AST.OP_EQ: return (evaluate(n.child0) == evaluate(n.child1)) ? 1 : 0;
+            case AST.OP_NOTEQ: return (evaluate(n.child0) != evaluate(n.child1)) ? 1 : 0;
+            case AST.OP_GTEQ: return (evaluate(n.child0) >= evaluate(n.child1)) ? 1 : 0;
+            case AST.OP_GT: return (evaluate(n.child0) > evaluate(n.child1)) ? 1 : 0;
+            case AST.OP_PLUS: return evaluate(n.child0) + evaluate(n.child1);
+            case AST.OP_MINUS: return evaluate(n.child0) - evaluate(n.child1);
+            case AST.OP_MULT: return evaluate(n.child0) * evaluate(n.child1);
+            case AST.OP_OR: return evaluate(n.child0) | evaluate(n.child1); // Both sides, as 0 or 1
+            case AST.OP_AND: return evaluate(n.child0) & evaluate(n.child1);
+            case AST.OP_DIV:
+                int left = evaluate(n.child0);
+                int right = evaluate(n.child1);
+                if(right == 0)
+                    throw new ArithmeticException("at " + lines.format(n.offset) + ", division by zero");
+                return left / right;
+            default: return 0;
+        }
+    }
+}
+
+/**
+ * class Optimizer
+ * Rewrites an analyzed and prepared AST of ASTNodes (see Interpreter.prepare())
+ * before it is run, through a list of OptimizerPasses. The tree is walked
+ * once, in program order and bottom-up: each expression is given to the
+ * passes after its operands, and each statement after its expressions and
+ * bodies, so a pass sees parts that are already optimized. A Statements
+ * chain is rebuilt from what the passes leave of it, and a body keeps at
+ * least one statement.
+ * 
+ * With a Propagation, the walk also keeps what is known about each variable,
+ * and a VARIABLE is replaced by its constant or by the variable it copies
+ * before the passes see it, so "a := 15; b := a + 5" folds to "b := 20".
+ * An IF on a condition that became a literal only has its taken branch walked.
+ */
+class Optimizer {
+    final OptimizerPass[] passes;
+    final Propagation flow; // null to leave variables as they are
+
+    // Constructor
+    public Optimizer(Propagation flow, OptimizerPass... passes) {
+        this.flow = flow;
+        this.passes = passes;
+    }
+
+    /**
+     * standard()
+     * Returns an Optimizer with constant and copy propagation, constant
+     * folding, algebraic simplification and dead branch removal.
+     */
+    static Optimizer standard(int slotCount) {
+        return new Optimizer(new Propagation(slotCount), new ConstantFolding(), new Simplification(), new BranchRemoval());
+    }
+
+    /**
+     * body()
+     * Optimizes a body and returns it, or what replaces it.
+     */
+    ASTNode body(ASTNode n) {
+        List<ASTNode> decls = new ArrayList<>(); // SEQ node of each DECL
+        while(n.code == AST.SEQ && n.child0.code == AST.DECL) {
+            decls.add(n);
+            if(flow != null)
+                flow.declare(n.child0.slot);
+            n = n.child1;
+        }
+        ASTNode body = statements(n);
+
+        // The declared variables go out of scope, and their slots may be reused.
+        // The declarations the passes keep are chained again in front.
+        for(int i = decls.size() - 1; i >= 0; i--) {
+            ASTNode seq = decls.get(i);
+            if(flow != null)
+                flow.killCopies(seq.child0.slot);
+            if(keep(seq.child0)) {
+                seq.child1 = body;
+                body = seq;
+            }
+        }
+        return body;
+    }
+
+    boolean keep(ASTNode decl) {
+        for(OptimizerPass pass : passes)
+            if(!pass.keep(decl))
+                return false;
+        return true;
+    }
+
+    ASTNode statements(ASTNode n) {
+        List<ASTNode> kept = new ArrayList<>();
+        List<ASTNode> list = Interpreter.statements(n);
+        for(ASTNode statement : list) {
+            statement(statement);
+            List<ASTNode> current = List.of(statement);
+            for(OptimizerPass pass : passes) {
+                List<ASTNode> next = new ArrayList<>();
+                for(ASTNode s : current)
+                    pass.statement(s, next);
+                current = next;
+            }
+            kept.addAll(current);
+        }
+        if(kept.isEmpty())
+            kept.add(list.get(0)); // Nothing left to run, but a body needs a statement
+
+        // Chain the statements again, nested to the left
+        ASTNode chain = kept.get(0);
+        for(int i = 1; i < kept.size(); i++) {
+            ASTNode seq = new ASTNode("SEQ", kept.get(i).offset);
+            seq.code = AST.SEQ;
+            seq.child0 = chain;
+            seq.child1 = kept.get(i);
+            chain = seq;
+        }
+        return chain;
+    }
+
+    void statement(ASTNode n) {
+        switch(n.code) {
+            case AST.ASSIGNMENT:
+                n.child1 = expression(n.child1);
+                if(flow != null)
+                    flow.assign(n.child0.slot, n.child1);
+                break;
+            case AST.IF:
+                n.child0 = expression(n.child0);
+                if(flow != null && OptimizerPass.isLiteral(n.child0)) {
+                    if(n.child0.slot != 0)
+                        n.child1 = body(n.child1);
+                    else if(n.child2 != null)
+                        n.child2 = body(n.child2);
+                } else if(flow != null) {
+                    int mark = flow.mark();
+                    n.child1 = body(n.child1);
+                    Propagation.Branch first = flow.branch(mark);
+                    if(n.child2 != null)
+                        n.child2 = body(n.child2);
+                    flow.join(mark, first);
+                } else {
+                    n.child1 = body(n.child1);
+                    if(n.child2 != null)
+                        n.child2 = body(n.child2);
+                }
+                break;
+            case AST.WHILE:
+                int mark = 0;
+                if(flow != null) {
+                    flow.loop(n.child1);
+                    mark = flow.mark();
+                }
+                n.child0 = expression(n.child0);
+                n.child1 = body(n.child1);
+                if(flow != null)
+                    flow.undo(mark);
+                break;
+            default: // PRINT_INT and PRINT_BOOL
+                n.child0 = expression(n.child0);
+                break;
+        }
+    }
+
+    ASTNode expression(ASTNode n) {
+        if(n.code == AST.VARIABLE && flow != null)
+            return flow.use(n);
+        if(n.code < AST.OP_NOT || n.code > AST.OP_AND)
+            return n; // Literal or variable
+        n.child0 = expression(n.child0);
+        if(n.child1 != null)
+            n.child1 = expression(n.child1);
+        for(OptimizerPass pass : passes)
+            n = pass.expression(n);
+        return n;
+    }
+}
+
+/**
+ * class Propagation
+ * What is known about each variable slot at one point of the program, as
+ * the Optimizer walks it in order: a constant value, a copy of another
+ * variable, or nothing. Declarations start a variable at the constant 0,
+ * and an assignment of a literal or of another variable makes it known.
+ * Assigning a variable ends every copy of it.
+ * 
+ * Changes are logged on a trail, so the state before a branch is restored
+ * by undoing them. After an IF, a slot keeps what both branches agree on.
+ * At a WHILE every variable assigned in the loop is unknown, which is what
+ * holds both on entry and after any number of iterations, so the loop is
+ * walked once and its changes undone after it.
+ */
+class Propagation {
+    static final int UNKNOWN = 0;
+    static final int CONSTANT = 1; // value is the constant
+    static final int COPY = 2; // value is the slot copied, sources[] its VARIABLE node
+
+    int[] kinds;
+    int[] values;
+    ASTNode[] sources;
+    int[] copyCounts; // Slots holding a COPY of each slot, so most assignments need not look for copies
+
+    // Trail of old states (slot, kind, value, source)
+    int[] trail = new int[3 * 64];
+    ASTNode[] trailSources = new ASTNode[64];
+    int trailSize = 0;
+
+    // Marks used to find each slot once
+    int[] stamps;
+    int[] indices;
+    int stamp = 0;
+    int[] found = new int[16]; // Slots found by assigned()
+    int foundCount = 0;
+
+    // Constructor
+    public Propagation(int slotCount) {
+        int count = Math.max(slotCount, 1);
+        kinds = new int[count];
+        values = new int[count];
+        sources = new ASTNode[count];
+        copyCounts = new int[count];
+        stamps = new int[count];
+        indices = new int[count];
+    }
+
+    /**
+     * use()
+     * Returns what a VARIABLE can be replaced with: a literal, the variable
+     * it is a copy of, or itself.
+     */
+    ASTNode use(ASTNode n) {
+        switch(kinds[n.slot]) {
+            case CONSTANT:
+                return OptimizerPass.literal(n, values[n.slot]);
+            case COPY:
+                ASTNode source = sources[n.slot];
+                ASTNode copy = new ASTNode(source.kind, n.offset);
+                copy.code = AST.VARIABLE;
+                copy.child0 = source.child0;
+                copy.slot = source.slot;
+                copy.bool = source.bool;
+                return copy;
+            default:
+                return n;
+        }
+    }
+
+    /**
+     * assign(), declare()
+     * Records the (optimized) value stored in a slot.
+     */
+    void assign(int slot, ASTNode value) {
+        if(value.code == AST.VARIABLE && value.slot == slot)
+            return; // "x := x" changes nothing
+        killCopies(slot);
+        if(OptimizerPass.isLiteral(value))
+            set(slot, CONSTANT, value.slot, null);
+        else if(value.code == AST.VARIABLE)
+            set(slot, COPY, value.slot, value);
+        else
+            set(slot, UNKNOWN, 0, null);
+    }
+    void declare(int slot) {
+        killCopies(slot);
+        set(slot, CONSTANT, 0, null);
+    }
+
+    // Ends the copies of a slot that is about to change or go out of scope
+    void killCopies(int slot) {
+        if(copyCounts[slot] == 0)
+            return;
+        for(int s = 0; s < kinds.length; s++)
+            if(kinds[s] == COPY && values[s] == slot)
+                set(s, UNKNOWN, 0, null);
+    }
+
+    /**
+     * loop()
+     * Makes every variable assigned or declared in a loop body unknown,
+     * with the copies of them.
+     */
+    void loop(ASTNode body) {
+        stamp++;
+        foundCount = 0;
+        assigned(body);
+        for(int i = 0; i < foundCount; i++) {
+            killCopies(found[i]);
+            set(found[i], UNKNOWN, 0, null);
+        }
+    }
+
+    // Lists the slots assigned or declared in a body, each once
+    void assigned(ASTNode n) {
+        while(n.code == AST.SEQ && n.child0.code == AST.DECL) {
+            found(n.child0.slot);
+            n = n.child1;
+        }
+        for(ASTNode statement : Interpreter.statements(n)) {
+            switch(statement.code) {
+                case AST.ASSIGNMENT:
+                    found(statement.child0.slot);
+                    break;
+                case AST.IF:
+                    assigned(statement.child1);
+                    if(statement.child2 != null)
+                        assigned(statement.child2);
+                    break;
+                case AST.WHILE:
+                    assigned(statement.child1);
+                    break;
+            }
+        }
+    }
+
+    void found(int slot) {
+        if(stamps[slot] == stamp)
+            return;
+        stamps[slot] = stamp;
+        if(foundCount == found.length)
+            found = Arrays.copyOf(found, foundCount * 2);
+        found[foundCount++] = slot;
+    }
+
+    // Trail
+
+    int mark() {
+        return trailSize;
+    }
+
+    void set(int slot, int kind, int value, ASTNode source) {
+        if(3 * trailSize == trail.length) {
+            trail = Arrays.copyOf(trail, trail.length * 2);
+            trailSources = Arrays.copyOf(trailSources, trailSources.length * 2);
+        }
+        trail[3 * trailSize] = slot;
+        trail[3 * trailSize + 1] = kinds[slot];
+        trail[3 * trailSize + 2] = values[slot];
+        trailSources[trailSize++] = sources[slot];
+        put(slot, kind, value, source);
+    }
+
+    void put(int slot, int kind, int value, ASTNode source) {
+        if(kinds[slot] == COPY)
+            copyCounts[values[slot]]--;
+        if(kind == COPY)
+            copyCounts[value]++;
+        kinds[slot] = kind;
+        values[slot] = value;
+        sources[slot] = source;
+    }
+
+    void undo(int mark) {
+        while(trailSize > mark) {
+            trailSize--;
+            put(trail[3 * trailSize], trail[3 * trailSize + 1], trail[3 * trailSize + 2], trailSources[trailSize]);
+            trailSources[trailSize] = null;
+        }
+    }
+
+    /**
+     * branch()
+     * Returns the state of each slot changed since the mark, then undoes
+     * the changes.
+     */
+    Branch branch(int mark) {
+        stamp++;
+        Branch branch = new Branch(trailSize - mark);
+        for(int i = mark; i < trailSize; i++) {
+            int slot = trail[3 * i];
+            if(stamps[slot] != stamp) {
+                stamps[slot] = stamp;
+                branch.add(slot, kinds[slot], values[slot], sources[slot]);
+            }
+        }
+        undo(mark);
+        return branch;
+    }
+
+    /**
+     * join()
+     * Ends an IF: each slot changed by its first branch (from branch()) or
+     * by the branch since, gets the state both branches agree on.
+     */
+    void join(int mark, Branch first) {
+        Branch second = branch(mark); // Back to the state before the IF
+
+        int firstStamp = ++stamp;
+        for(int i = 0; i < first.count; i++) {
+            stamps[first.slots[i]] = firstStamp;
+            indices[first.slots[i]] = i;
+        }
+        int bothStamp = ++stamp;
+        for(int i = 0; i < second.count; i++) {
+            int slot = second.slots[i];
+            if(stamps[slot] == firstStamp) {
+                int j = indices[slot];
+                merge(slot, first.kinds[j], first.values[j], first.sources[j], second.kinds[i], second.values[i]);
+                stamps[slot] = bothStamp;
+            } else
+                merge(slot, kinds[slot], values[slot], sources[slot], second.kinds[i], second.values[i]);
+        }
+        for(int i = 0; i < first.count; i++) {
+            int slot = first.slots[i];
+            if(stamps[slot] != bothStamp)
+                merge(slot, first.kinds[i], first.values[i], first.sources[i], kinds[slot], values[slot]);
+        }
+    }
+
+    void merge(int slot, int kind, int value, ASTNode source, int otherKind, int otherValue) {
+        if(kind != UNKNOWN && kind == otherKind && value == otherValue)
+            set(slot, kind, value, source);
+        else
+            set(slot, UNKNOWN, 0, null);
+    }
+
+    // Slots changed by one branch of an IF, and their state at its end
+    static class Branch {
+        int[] slots, kinds, values;
+        ASTNode[] sources;
+        int count = 0;
+
+        Branch(int size) {
+            slots = new int[size];
+            kinds = new int[size];
+            values = new int[size];
+            sources = new ASTNode[size];
+        }
+
+        void add(int slot, int kind, int value, ASTNode source) {
+            slots[count] = slot;
+            kinds[count] = kind;
+            values[count] = value;
+            sources[count++] = source;
+        }
+    }
+}
+
+/**
+ * class OptimizerPass
+ * One rewrite done by the Optimizer. Both methods leave the node as it is
+ * unless a pass overrides them.
+ */
+abstract class OptimizerPass {
+    // Returns the expression to use in place of n
+    ASTNode expression(ASTNode n) {
+        return n;
+    }
+
+    // Adds what replaces statement n to the list: itself, nothing or other statements
+    void statement(ASTNode n, List<ASTNode> out) {
+        out.add(n);
+    }
+
+    // Whether a declaration stays in its body
+    boolean keep(ASTNode decl) {
+        return true;
+    }
+
+    static boolean isLiteral(ASTNode n) {
+        return n.code == AST.INT_LITERAL || n.code == AST.BOOL_LITERAL;
+    }
+
+    static boolean isLiteral(ASTNode n, int value) {
+        return isLiteral(n) && n.slot == value;
+    }
+
+    /**
+     * literal()
+     * Creates a prepared literal for an expression, with the expression's
+     * type, position and the given value.
+     */
+    static ASTNode literal(ASTNode n, int value) {
+        ASTNode lit = new ASTNode(n.bool ? "BOOL_LITERAL" : "INT_LITERAL", n.offset);
+        lit.code = n.bool ? AST.BOOL_LITERAL : AST.INT_LITERAL;
+        lit.bool = n.bool;
+        lit.slot = value;
+        String text = n.bool ? ((value != 0) ? "true" : "false") : Integer.toString(value);
+        lit.child0 = new ASTNode(text, n.offset);
+        return lit;
+    }
+}
+
+/**
+ * class ConstantFolding
+ * Replaces an operator on literals by the literal of its value, computed
+ * as when the program runs (ints wrap). A division by zero is left to fail
+ * when it runs.
+ */
+class ConstantFolding extends OptimizerPass {
+    ASTNode expression(ASTNode n) {
+        if(!isLiteral(n.child0) || (n.child1 != null && !isLiteral(n.child1)))
+            return n;
+        int left = n.child0.slot;
+        if(n.code == AST.OP_NOT)
+            return literal(n, n.not ? 1 - left : -left);
+
+        int right = n.child1.slot;
+        switch(n.code) {
+            case AST.OP_LT: return literal(n, (left < right) ? 1 : 0);
+            case AST.OP_EQLT: return literal(n, (left <= right) ? 1 : 0);
+            case AST.OP_EQ: return literal(n, (left == right) ? 1 : 0);
+            case AST.OP_NOTEQ: return literal(n, (left != right) ? 1 : 0);
+            case AST.OP_GTEQ: return literal(n, (left >= right) ? 1 : 0);
+            case AST.OP_GT: return literal(n, (left > right) ? 1 : 0);
+            case AST.OP_PLUS: return literal(n, left + right);
+            case AST.OP_MINUS: return literal(n, left - right);
+            case AST.OP_MULT: return literal(n, left * right);
+            case AST.OP_OR: return literal(n, left | right);
+            case AST.OP_AND: return literal(n, left & right);
+            default: // OP_DIV
+                return (right == 0) ? n : literal(n, left / right);
+        }
+    }
+}
+
+/**
+ * class Simplification
+ * Removes operators that do not change their operand: "x + 0", "0 + x",
+ * "x - 0", "x * 1", "1 * x", "x / 1", "x and true", "x or false" and a
+ * double "not" or "-". "x * 0", "x and false" and "x or true" become a
+ * literal when x has no division, which could still fail.
+ */
+class Simplification extends OptimizerPass {
+    ASTNode expression(ASTNode n) {
+        ASTNode left = n.child0, right = n.child1;
+        switch(n.code) {
+            case AST.OP_NOT:
+                return (left.code == AST.OP_NOT && left.not == n.not) ? left.child0 : n;
+            case AST.OP_PLUS:
+                if(isLiteral(right, 0)) return left;
+                if(isLiteral(left, 0)) return right;
+                return n;
+            case AST.OP_MINUS:
+            case AST.OP_DIV:
+                return isLiteral(right, (n.code == AST.OP_MINUS) ? 0 : 1) ? left : n;
+            case AST.OP_MULT:
+            case AST.OP_AND:
+                if(isLiteral(right, 1)) return left;
+                if(isLiteral(left, 1)) return right;
+                if((isLiteral(right, 0) && !divides(left)) || (isLiteral(left, 0) && !divides(right)))
+                    return literal(n, 0);
+                return n;
+            case AST.OP_OR:
+                if(isLiteral(right, 0)) return left;
+                if(isLiteral(left, 0)) return right;
+                if((isLiteral(right, 1) && !divides(left)) || (isLiteral(left, 1) && !divides(right)))
+                    return literal(n, 1);
+                return n;
+            default:
+                return n;
+        }
+    }
+
+    static boolean divides(ASTNode n) {
+        if(n == null || n.code < AST.OP_NOT || n.code > AST.OP_AND)
+            return false;
+        return n.code == AST.OP_DIV || divides(n.child0) || divides(n.child1);
+    }
+}
+
+/**
+ * class BranchRemoval
+ * Removes IF and WHILE statements whose condition is a literal. An IF is
+ * replaced by the statements of the body that would run, or by nothing;
+ * a body with declarations stays an IF on "true" so its variables keep
+ * their scope. A WHILE on "false" is removed.
+ */
+class BranchRemoval extends OptimizerPass {
+    void statement(ASTNode n, List<ASTNode> out) {
+        if(n.code == AST.IF && isLiteral(n.child0)) {
+            ASTNode taken = (n.child0.slot != 0) ? n.child1 : n.child2;
+            if(taken == null)
+                return;
+            if(taken.code == AST.SEQ && taken.child0.code == AST.DECL) {
+                n.child0 = literal(n.child0, 1);
+                n.child1 = taken;
+                n.child2 = null;
+                out.add(n);
+            } else
+                out.addAll(Interpreter.statements(taken));
+        } else if(!(n.code == AST.WHILE && isLiteral(n.child0, 0)))
+            out.add(n);
+    }
+}
+
+/**
+ * class IR
+ * Three-address code of a prepared AST, in basic blocks. Each instruction
+ * is one operation on at most two operands into a destination, kept in
+ * parallel int arrays like the ASTArena: "a := b * c + 1" becomes
+ * MULT t0 b c, PLUS a t0 1. Operands are variable slots, then temporaries
+ * (numbered after the variables, and free again after each statement),
+ * or constants (flagged with CONSTANT). A declaration is a MOVE of 0.
+ * 
+ * A block is a run of instructions entered at the top; it ends with
+ * a BRANCH for an IF or WHILE condition. next0 and next1 are the blocks
+ * after it (on true and on false after a BRANCH), forming the control-flow
+ * graph. Temporaries never outlive their block, since "and" and "or"
+ * always evaluate both sides.
+ * 
+ * needed() runs a liveness analysis over the graph, with a bitset of
+ * variables per block, and marks the instructions whose result can
+ * still be used. It is the strong form: the operands of an instruction
+ * whose result is never used do not make anything live, so a whole
+ * chain of unused assignments is found in one analysis.
+ */
+class IR {
+    // Operations
+    static final int MOVE = 0; // d := a
+    static final int NEG = 1; // d := -a
+    static final int NOT = 2; // d := not a
+    static final int PRINT = 3; // print a (an int)
+    static final int PRINT_BOOL = 4; // print a (a bool)
+    static final int BRANCH = 5; // Ends a block: to next0 if a, otherwise to next1
+    static final int BINARY = 6; // BINARY + (AST code - OP_LT): d := a op b, OP_LT to OP_AND
+    static final int DIV = BINARY + AST.OP_DIV - AST.OP_LT;
+
+    static final int CONSTANT = 1 << 30; // Flags an operand as an index in constants
+    static final int NONE = -1; // No destination, or no second operand
+
+    // Instructions
+    int[] ops = new int[256];
+    int[] dests = new int[256];
+    int[] lefts = new int[256];
+    int[] rights = new int[256];
+    ASTNode[] origins = new ASTNode[256]; // Statement or DECL of each instruction
+    int length = 0;
+    int[] constants = new int[16];
+    int constantCount = 0;
+
+    // Blocks, in order: block b is the instructions from starts[b] to starts[b + 1]
+    int[] starts = new int[16];
+    int[] next0 = new int[16];
+    int[] next1 = new int[16];
+    int blockCount = 0;
+
+    final int slots; // Variable slots
+    int temps = 0; // Temporaries in use
+    int maxTemps = 0;
+    ASTNode origin; // Statement being lowered
+
+    // Constructor
+    public IR(int slotCount) {
+        slots = Math.max(slotCount, 1);
+        block();
+    }
+
+    /**
+     * lower()
+     * Returns the IR of a program body.
+     */
+    static IR lower(ASTNode root, int slotCount) {
+        IR ir = new IR(slotCount);
+        ir.body(root);
+        ir.starts[ir.blockCount] = ir.length; // End of the last block
+        return ir;
+    }
+
+    void body(ASTNode n) {
+        while(n.code == AST.SEQ && n.child0.code == AST.DECL) {
+            origin = n.child0;
+            emit(MOVE, n.child0.slot, constant(0), NONE);
+            n = n.child1;
+        }
+        for(ASTNode statement : Interpreter.statements(n))
+            statement(statement);
+    }
+
+    void statement(ASTNode n) {
+        origin = n;
+        temps = 0;
+        switch(n.code) {
+            case AST.ASSIGNMENT:
+                int slot = n.child0.slot;
+                int value = value(n.child1, slot);
+                if(value != slot)
+                    emit(MOVE, slot, value, NONE);
+                break;
+            case AST.IF:
+                int test = blockCount - 1;
+                emit(BRANCH, NONE, value(n.child0, NONE), NONE);
+                link(test, block());
+                body(n.child1);
+                int thenEnd = blockCount - 1;
+                if(n.child2 != null) {
+                    link(test, block());
+                    body(n.child2);
+                }
+                int after = block();
+                link(thenEnd, after);
+                link(blockCount - 2, after);
+                if(n.child2 == null)
+                    link(test, after);
+                break;
+            case AST.WHILE:
+                int head = block();
+                link(head - 1, head);
+                emit(BRANCH, NONE, value(n.child0, NONE), NONE);
+                link(head, block());
+                body(n.child1);
+                link(blockCount - 1, head);
+                link(head, block());
+                break;
+            default: // PRINT_INT and PRINT_BOOL
+                emit((n.code == AST.PRINT_BOOL) ? PRINT_BOOL : PRINT, NONE, value(n.child0, NONE), NONE);
+                break;
+        }
+    }
+
+    /**
+     * value()
+     * Emits the instructions of an expression and returns the operand
+     * holding its value: dest if given and an instruction was needed.
+     */
+    int value(ASTNode n, int dest) {
+        switch(n.code) {
+            case AST.INT_LITERAL:
+            case AST.BOOL_LITERAL: return constant(n.slot);
+            case AST.VARIABLE: return n.slot;
+        }
+        int mark = temps;
+        int left = value(n.child0, NONE);
+        int right = (n.child1 == null) ? NONE : value(n.child1, NONE);
+        temps = mark; // The operands are used up
+        if(dest == NONE) {
+            dest = slots + temps++;
+            maxTemps = Math.max(maxTemps, temps);
+        }
+        if(n.code == AST.OP_NOT)
+            emit(n.not ? NOT : NEG, dest, left, NONE);
+        else
+            emit(BINARY + n.code - AST.OP_LT, dest, left, right);
+        return dest;
+    }
+
+    int constant(int value) {
+        if(constantCount == constants.length)
+            constants = Arrays.copyOf(constants, constantCount * 2);
+        constants[constantCount] = value;
+        return CONSTANT + constantCount++;
+    }
+
+    void emit(int op, int dest, int left, int right) {
+        if(length == ops.length) {
+            ops = Arrays.copyOf(ops, length * 2);
+            dests = Arrays.copyOf(dests, length * 2);
+            lefts = Arrays.copyOf(lefts, length * 2);
+            rights = Arrays.copyOf(rights, length * 2);
+            origins = Arrays.copyOf(origins, length * 2);
+        }
+        ops[length] = op;
+        dests[length] = dest;
+        lefts[length] = left;
+        rights[length] = right;
+        origins[length++] = origin;
+    }
+
+    // Starts a new block at the next instruction and returns it
+    int block() {
+        if(blockCount + 1 == starts.length) {
+            starts = Arrays.copyOf(starts, starts.length * 2);
+            next0 = Arrays.copyOf(next0, starts.length);
+            next1 = Arrays.copyOf(next1, starts.length);
+        }
+        starts[blockCount] = length;
+        next0[blockCount] = NONE;
+        next1[blockCount] = NONE;
+        return blockCount++;
+    }
+
+    // Adds an edge of the control-flow graph
+    void link(int from, int to) {
+        if(next0[from] == NONE)
+            next0[from] = to;
+        else
+            next1[from] = to;
+    }
+
+    /**
+     * needed()
+     * Returns which instructions are needed: prints, branches and divisions
+     * that could fail, and the instructions computing what they use. The live
+     * variables at the top of each block are found with a worklist, from
+     * the end of the program backwards, until no block changes.
+     */
+    boolean[] needed() {
+        int words = (slots + 63) / 64;
+        long[][] liveIn = new long[blockCount][];
+        for(int b = 0; b < blockCount; b++)
+            liveIn[b] = new long[words];
+
+        // Predecessors of each block, in one array
+        int[] predStarts = new int[blockCount + 1];
+        for(int b = 0; b < blockCount; b++) {
+            if(next0[b] != NONE) predStarts[next0[b] + 1]++;
+            if(next1[b] != NONE) predStarts[next1[b] + 1]++;
+        }
+        for(int b = 0; b < blockCount; b++)
+            predStarts[b + 1] += predStarts[b];
+        int[] preds = new int[predStarts[blockCount]];
+        int[] fill = Arrays.copyOf(predStarts, blockCount);
+        for(int b = 0; b < blockCount; b++) {
+            if(next0[b] != NONE) preds[fill[next0[b]]++] = b;
+            if(next1[b] != NONE) preds[fill[next1[b]]++] = b;
+        }
+
+        // Worklist, last block first
+        int[] work = new int[blockCount];
+        boolean[] queued = new boolean[blockCount];
+        int top = 0;
+        for(int b = 0; b < blockCount; b++) {
+            work[top++] = b;
+            queued[b] = true;
+        }
+        long[] live = new long[words];
+        boolean[] temp = new boolean[maxTemps];
+        while(top > 0) {
+            int b = work[--top];
+            queued[b] = false;
+            liveOut(b, liveIn, live);
+            scan(b, live, temp, null);
+            if(!Arrays.equals(live, liveIn[b])) {
+                System.arraycopy(live, 0, liveIn[b], 0, words);
+                for(int p = predStarts[b]; p < predStarts[b + 1]; p++)
+                    if(!queued[preds[p]]) {
+                        queued[preds[p]] = true;
+                        work[top++] = preds[p];
+                    }
+            }
+        }
+
+        boolean[] needed = new boolean[length];
+        for(int b = 0; b < blockCount; b++) {
+            liveOut(b, liveIn, live);
+            scan(b, live, temp, needed);
+        }
+        return needed;
+    }
+
+    // Variables live at the end of a block: live at the top of a block after it
+    void liveOut(int b, long[][] liveIn, long[] live) {
+        Arrays.fill(live, 0);
+        for(int next : new int[] {next0[b], next1[b]})
+            if(next != NONE)
+                for(int w = 0; w < live.length; w++)
+                    live[w] |= liveIn[next][w];
+    }
+
+    // Runs a block backwards from the variables live at its end to those live at its top
+    void scan(int b, long[] live, boolean[] temp, boolean[] needed) {
+        Arrays.fill(temp, false);
+        for(int i = starts[b + 1] - 1; i >= starts[b]; i--) {
+            int op = ops[i], dest = dests[i];
+            boolean keep = (op == PRINT || op == PRINT_BOOL || op == BRANCH)
+                || (op == DIV && !(rights[i] >= CONSTANT && constants[rights[i] - CONSTANT] != 0))
+                || (dest != NONE && isLive(dest, live, temp));
+            if(dest != NONE)
+                setLive(dest, false, live, temp);
+            if(keep) {
+                setLive(lefts[i], true, live, temp);
+                setLive(rights[i], true, live, temp);
+            }
+            if(needed != null)
+                needed[i] = keep;
+        }
+    }
+
+    boolean isLive(int operand, long[] live, boolean[] temp) {
+        if(operand >= slots)
+            return temp[operand - slots];
+        return (live[operand >> 6] & (1L << operand)) != 0;
+    }
+
+    void setLive(int operand, boolean on, long[] live, boolean[] temp) {
+        if(operand == NONE || operand >= CONSTANT)
+            return;
+        if(operand >= slots)
+            temp[operand - slots] = on;
+        else if(on)
+            live[operand >> 6] |= 1L << operand;
+        else
+            live[operand >> 6] &= ~(1L << operand);
+    }
+}
+
+/**
+ * class DeadStores
+ * Removes assignments and declarations whose value is never used, as
+ * found by IR.needed(). A statement stays if any of its instructions is
+ * needed, such as a division that could fail.
+ */
+class DeadStores extends OptimizerPass {
+    final Set<ASTNode> used = Collections.newSetFromMap(new IdentityHashMap<>());
+
+    // Constructor
+    public DeadStores(ASTNode root, int slotCount) {
+        IR ir = IR.lower(root, slotCount);
+        boolean[] needed = ir.needed();
+        for(int i = 0; i < ir.length; i++)
+            if(needed[i])
+                used.add(ir.origins[i]);
+    }
+
+    /**
+     * remove()
+     * Removes the dead stores of a program body and returns what is left of it.
+     */
+    static ASTNode remove(ASTNode root, int slotCount) {
+        return new Optimizer(null, new DeadStores(root, slotCount)).body(root);
+    }
+
+    void statement(ASTNode n, List<ASTNode> out) {
+        if(n.code != AST.ASSIGNMENT || used.contains(n))
+            out.add(n);
+    }
+
+    boolean keep(ASTNode decl) {
+        return used.contains(decl);
+    }
+}
+
+/**
+ * class Bytecode
+ * A program compiled from its prepared AST (see Interpreter.prepare()) into
+ * one int array. Instructions name their operands by slot in one int frame:
+ * the variables come first, then temporaries for parts of expressions, then
+ * the literals. "a := b + 1" is then the single instruction ADD a b 1, with
+ * no pushing and popping. IF and WHILE become jumps to code indices, and a
+ * relational condition is tested by the jump itself. A WHILE tests at the
+ * bottom, so an iteration takes one jump. Booleans are 0 and 1.
+ */
+class Bytecode {
+    // Opcodes and their operands (d is the destination slot)
+    static final int HALT = 0;
+    static final int MOVE = 1; // d a
+    static final int NEG = 2; // d a
+    static final int NOT = 3; // d a
+    static final int LT = 4; // d a b, through AND in the order of OP_LT to OP_AND
+    static final int LE = 5;
+    static final int EQ = 6;
+    static final int NE = 7;
+    static final int GE = 8;
+    static final int GT = 9;
+    static final int ADD = 10;
+    static final int SUB = 11;
+    static final int OR = 12;
+    static final int MUL = 13;
+    static final int DIV = 14; // d a b offset, the source offset for a division by zero
+    static final int AND = 15;
+    static final int JUMP = 16; // target
+    static final int JUMP_FALSE = 17; // a target
+    static final int JUMP_TRUE = 18; // a target
+    static final int JUMP_LT = 19; // a b target, jumps if the relation holds, through JUMP_GT
+    static final int JUMP_LE = 20;
+    static final int JUMP_EQ = 21;
+    static final int JUMP_NE = 22;
+    static final int JUMP_GE = 23;
+    static final int JUMP_GT = 24;
+    static final int PRINT_INT = 25; // a
+    static final int PRINT_BOOL = 26; // a
+
+    static final int[] NEGATED = {JUMP_GE, JUMP_GT, JUMP_NE, JUMP_EQ, JUMP_LT, JUMP_LE}; // Jump if the relation fails
+
+    int[] code = new int[256];
+    int length = 0;
+    int slots; // Variables
+    int[] frame; // Initial frame: variables and temporaries 0, then the literals
+
+    // While compiling
+    int temps = 0; // Temporaries in use
+    int maxTemps = 0;
+    int lastDest = -1; // Code index of the destination of the last instruction
+    List<Integer> literals = new ArrayList<>();
+    HashMap<Integer, Integer> literalIndex = new HashMap<>();
+    List<Integer> literalOperands = new ArrayList<>(); // Code indices of literal slots
+
+    /**
+     * compile()
+     * Compiles a prepared program body with variables in the given slots.
+     */
+    static Bytecode compile(ASTNode root, int slots) {
+        Bytecode program = new Bytecode();
+        program.slots = slots;
+        program.body(root);
+        program.emit(HALT);
+
+        // Literal slots follow the temporaries, which are only known now
+        int first = slots + program.maxTemps;
+        program.frame = new int[first + program.literals.size()];
+        for(int i = 0; i < program.literals.size(); i++)
+            program.frame[first + i] = program.literals.get(i);
+        for(int at : program.literalOperands)
+            program.code[at] += first;
+        return program;
+    }
+
+    void body(ASTNode n) {
+        // Declarations start their variables at 0
+        while(n.code == AST.SEQ && n.child0.code == AST.DECL) {
+            emit(MOVE, n.child0.slot, literal(0));
+            n = n.child1;
+        }
+        for(ASTNode statement : Interpreter.statements(n))
+            statement(statement);
+    }
+
+    void statement(ASTNode n) {
+        switch(n.code) {
+            case AST.ASSIGNMENT:
+                int value = expression(n.child1);
+                if(isTemp(value) && lastDest >= 0 && code[lastDest] == value)
+                    code[lastDest] = n.child0.slot; // Computed straight into the variable
+                else
+                    emit(MOVE, n.child0.slot, value);
+                release(value);
+                break;
+            case AST.IF:
+                int toElse = jump(n.child0, false);
+                body(n.child1);
+                if(n.child2 != null) {
+                    emit(JUMP, -1);
+                    int toEnd = length - 1;
+                    patch(toElse);
+                    body(n.child2);
+                    patch(toEnd);
+                } else
+                    patch(toElse);
+                break;
+            case AST.WHILE:
+                emit(JUMP, -1);
+                int toTest = length - 1;
+                int top = length;
+                body(n.child1);
+                patch(toTest);
+                int toTop = jump(n.child0, true);
+                code[toTop] = top;
+                break;
+            case AST.PRINT_INT:
+            case AST.PRINT_BOOL:
+                int printed = expression(n.child0);
+                emit((n.code == AST.PRINT_INT) ? PRINT_INT : PRINT_BOOL, printed);
+                release(printed);
+                break;
+        }
+        lastDest = -1;
+    }
+
+    /**
+     * jump()
+     * Emits a jump taken when the condition is the given truth value,
+     * and returns the code index of its target for patching.
+     */
+    int jump(ASTNode condition, boolean when) {
+        if(condition.code >= AST.OP_LT && condition.code <= AST.OP_GT) {
+            int a = expression(condition.child0);
+            int b = expression(condition.child1);
+            release(b);
+            release(a);
+            int relation = condition.code - AST.OP_LT;
+            emit(when ? JUMP_LT + relation : NEGATED[relation], a, b, -1);
+        } else {
+            int a = expression(condition);
+            release(a);
+            emit(when ? JUMP_TRUE : JUMP_FALSE, a, -1);
+        }
+        return length - 1;
+    }
+    void patch(int at) {
+        code[at] = length;
+    }
+
+    /**
+     * expression()
+     * Emits the code of an expression and returns the slot of its value.
+     * Variables and literals need no code.
+     */
+    int expression(ASTNode n) {
+        switch(n.code) {
+            case AST.INT_LITERAL:
+            case AST.BOOL_LITERAL:
+                return literal(n.slot);
+            case AST.VARIABLE:
+                return n.slot;
+            case AST.OP_NOT:
+                int a = expression(n.child0);
+                release(a);
+                int d = temp();
+                emit(n.not ? NOT : NEG, d, a);
+                lastDest = length - 2;
+                return d;
+            default: // Binary operators
+                int left = expression(n.child0);
+                int right = expression(n.child1);
+                release(right);
+                release(left);
+                int dest = temp();
+                if(n.code == AST.OP_DIV)
+                    emit(DIV, dest, left, right, n.offset);
+                else
+                    emit(LT + n.code - AST.OP_LT, dest, left, right);
+                lastDest = length - ((n.code == AST.OP_DIV) ? 4 : 3);
+                return dest;
+        }
+    }
+
+    // Slots of temporaries are handed out and given back in stack order
+    int temp() {
+        maxTemps = Math.max(maxTemps, temps + 1);
+        return slots + temps++;
+    }
+    boolean isTemp(int slot) {
+        return slot >= slots && slot < slots + temps;
+    }
+    void release(int slot) {
+        if(isTemp(slot)) temps--;
+    }
+
+    // Literal slots are numbered from LITERAL until compile() knows where they start
+    static final int LITERAL = 1 << 30;
+    int literal(int value) {
+        Integer index = literalIndex.get(value);
+        if(index == null) {
+            index = literals.size();
+            literals.add(value);
+            literalIndex.put(value, index);
+        }
+        return LITERAL + index;
+    }
+
+    void emit(int... instruction) {
+        if(length + instruction.length > code.length)
+            code = Arrays.copyOf(code, code.length * 2);
+        for(int operand : instruction) {
+            if(operand >= LITERAL) {
+                literalOperands.add(length);
+                operand -= LITERAL;
+            }
+            code[length++] = operand;
+        }
+    }
+}
+
+/**
+ * class VM
+ * Runs Bytecode with one loop that switches on each opcode,
+ * reading and writing the slots of the program's frame.
+ */
+class VM {
+    final OutputSink out;
+    final LineIndex lines;
+    long steps = 0; // Instructions executed
+
+    // Constructor
+    public VM(OutputSink out, LineIndex lines) {
+        this.out = out;
+        this.lines = lines;
+    }
+
+    /**
+     * run()
+     * Runs the program to its end, then shows how long it took.
+     */
+    public void run(Bytecode program) {
+        int[] code = program.code;
+        int[] frame = program.frame.clone();
+        int pc = 0;
+        long count = 0;
+
+        long start = System.nanoTime();
+        try {
+            loop:
+            while(true) {
+                count ++;
+                switch(code[pc]) {
+                    case Bytecode.HALT: break loop;
+                    case Bytecode.MOVE: frame[code[pc + 1]] = frame[code[pc + 2]]; pc += 3; break;
+                    case Bytecode.NEG: frame[code[pc + 1]] = -frame[code[pc + 2]]; pc += 3; break;
+                    case Bytecode.NOT: frame[code[pc + 1]] = 1 - frame[code[pc + 2]]; pc += 3; break;
+                    case Bytecode.LT: frame[code[pc + 1]] = (frame[code[pc + 2]] < frame[code[pc + 3]]) ? 1 : 0; pc += 4; break;
+                    case Bytecode.LE: frame[code[pc + 1]] = (frame[code[pc + 2]] <= frame[code[pc + 3]]) ? 1 : 0; pc += 4; break;
+                    case Bytecode.EQ: frame[code[pc + 1]] = (frame[code[pc + 2]] == frame[code[pc + 3]]) ? 1 : 0; pc += 4; break;
+                    case Bytecode.NE: frame[code[pc + 1]] = (frame[code[pc + 2]] != frame[code[pc + 3]]) ? 1 : 0; pc += 4; break;
+                    case Bytecode.GE: frame[code[pc + 1]] = (frame[code[pc + 2]] >= frame[code[pc + 3]]) ? 1 : 0; pc += 4; break;
+                    case Bytecode.GT: frame[code[pc + 1]] = (frame[code[pc + 2]] > frame[code[pc + 3]]) ? 1 : 0; pc += 4; break;
+                    case Bytecode.ADD: frame[code[pc + 1]] = frame[code[pc + 2]] + frame[code[pc + 3]]; pc += 4; break;
+                    case Bytecode.SUB: frame[code[pc + 1]] = frame[code[pc + 2]] - frame[code[pc + 3]]; pc += 4; break;
+                    case Bytecode.OR: frame[code[pc + 1]] = frame[code[pc + 2]] | frame[code[pc + 3]]; pc += 4; break;
+                    case Bytecode.MUL: frame[code[pc + 1]] = frame[code[pc + 2]] * frame[code[pc + 3]]; pc += 4; break;
+                    case Bytecode.AND: frame[code[pc + 1]] = frame[code[pc + 2]] & frame[code[pc + 3]]; pc += 4; break;
+                    case Bytecode.DIV:
+                        int divisor = frame[code[pc + 3]];
+                        if(divisor == 0)
+                            throw new ArithmeticException("at " + lines.format(code[pc + 4]) + ", division by zero");
+                        frame[code[pc + 1]] = frame[code[pc + 2]] / divisor;
+                        pc += 5;
+                        break;
+                    case Bytecode.JUMP: pc = code[pc + 1]; break;
+                    case Bytecode.JUMP_FALSE: pc = (frame[code[pc + 1]] == 0) ? code[pc + 2] : pc + 3; break;
+                    case Bytecode.JUMP_TRUE: pc = (frame[code[pc + 1]] != 0) ? code[pc + 2] : pc + 3; break;
+                    case Bytecode.JUMP_LT: pc = (frame[code[pc + 1]] < frame[code[pc + 2]]) ? code[pc + 3] : pc + 4; break;
+                    case Bytecode.JUMP_LE: pc = (frame[code[pc + 1]] <= frame[code[pc + 2]]) ? code[pc + 3] : pc + 4; break;
+                    case Bytecode.JUMP_EQ: pc = (frame[code[pc + 1]] == frame[code[pc + 2]]) ? code[pc + 3] : pc + 4; break;
+                    case Bytecode.JUMP_NE: pc = (frame[code[pc + 1]] != frame[code[pc + 2]]) ? code[pc + 3] : pc + 4; break;
+                    case Bytecode.JUMP_GE: pc = (frame[code[pc + 1]] >= frame[code[pc + 2]]) ? code[pc + 3] : pc + 4; break;
+                    case Bytecode.JUMP_GT: pc = (frame[code[pc + 1]] > frame[code[pc + 2]]) ? code[pc + 3] : pc + 4; break;
+                    case Bytecode.PRINT_INT: out.println(Integer.toString(frame[code[pc + 1]])); pc += 2; break;
+                    case Bytecode.PRINT_BOOL: out.println((frame[code[pc + 1]] != 0) ? "true" : "false"); pc += 2; break;
+                }
+            }
+        } catch(ArithmeticException e) {
+            out.println("Error: " + e.getMessage());
+        }
+        steps = count;
+
+        double seconds = Math.max(System.nanoTime() - start, 1) / 1e9;
+        out.println("Program ran " + steps + " instructions in " + String.format("%.3f", seconds) + " s ("
+            + String.format("%.0f", steps / seconds) + " instructions/sec)\n");
+    }
+}
+
+/**
+ * class ClassCompiler
+ * Compiles a prepared program body (see Interpreter.prepare()) straight to
+ * a JVM class and runs it. The class has one static method, run(), whose
+ * locals are the variables (slot + 1), so a WHILE is a real backward branch
+ * that HotSpot compiles like any Java loop. The class file is written here
+ * by hand, as version 49 so it needs no stack map frames, and is loaded as
+ * a hidden class. print and division call back into this object, so output
+ * and the division by zero error are the same as on the VM. A program too
+ * big for one method, or one that fails to load, runs on the VM instead.
+ */
+class ClassCompiler {
+    // JVM opcodes
+    static final int ICONST_0 = 0x03;
+    static final int BIPUSH = 0x10;
+    static final int SIPUSH = 0x11;
+    static final int LDC = 0x12;
+    static final int LDC_W = 0x13;
+    static final int ILOAD = 0x15;
+    static final int ILOAD_0 = 0x1a;
+    static final int ALOAD_0 = 0x2a;
+    static final int ISTORE = 0x36;
+    static final int ISTORE_0 = 0x3b;
+    static final int IADD = 0x60;
+    static final int ISUB = 0x64;
+    static final int IMUL = 0x68;
+    static final int INEG = 0x74;
+    static final int IAND = 0x7e;
+    static final int IOR = 0x80;
+    static final int IXOR = 0x82;
+    static final int IFEQ = 0x99;
+    static final int IFNE = 0x9a;
+    static final int IF_ICMPEQ = 0x9f;
+    static final int IF_ICMPNE = 0xa0;
+    static final int IF_ICMPLT = 0xa1;
+    static final int IF_ICMPGE = 0xa2;
+    static final int IF_ICMPGT = 0xa3;
+    static final int IF_ICMPLE = 0xa4;
+    static final int GOTO = 0xa7;
+    static final int RETURN = 0xb1;
+    static final int INVOKEVIRTUAL = 0xb6;
+    static final int WIDE = 0xc4;
+
+    // Compare and jump for OP_LT to OP_GT, when the relation holds and when it fails
+    static final int[] IF_HOLDS = {IF_ICMPLT, IF_ICMPLE, IF_ICMPEQ, IF_ICMPNE, IF_ICMPGE, IF_ICMPGT};
+    static final int[] IF_FAILS = {IF_ICMPGE, IF_ICMPGT, IF_ICMPNE, IF_ICMPEQ, IF_ICMPLT, IF_ICMPLE};
+
+    static final String NAME = "CompiledProgram";
+    static final String RUN = "(LClassCompiler;)V";
+    static final int MAX_BRANCH = 32767; // Longest jump without goto_w
+
+    final OutputSink out;
+    final LineIndex lines;
+
+    // Code of run() and the constant pool, while compiling
+    byte[] code = new byte[1024];
+    int length = 0;
+    int depth = 0;
+    int maxStack = 0;
+    ByteArrayOutputStream pool = new ByteArrayOutputStream();
+    int poolCount = 1;
+    HashMap<String, Integer> poolIndex = new HashMap<>();
+
+    // Constructor
+    public ClassCompiler(OutputSink out, LineIndex lines) {
+        this.out = out;
+        this.lines = lines;
+    }
+
+    /**
+     * run()
+     * Compiles and runs the program, then shows how long it took.
+     */
+    public void run(ASTNode root, int slots) {
+        MethodHandle program = load(compile(root, slots));
+        if(program == null) {
+            new VM(out, lines).run(Bytecode.compile(root, slots));
+            return;
+        }
+
+        long start = System.nanoTime();
+        try {
+            program.invokeExact(this);
+        } catch(ArithmeticException e) {
+            out.println("Error: " + e.getMessage());
+        } catch(Throwable e) {
+            throw new IllegalStateException("Compiled program failed", e);
+        }
+        double seconds = Math.max(System.nanoTime() - start, 1) / 1e9;
+        out.println("Program ran in " + String.format("%.3f", seconds) + " s (compiled to a JVM class)\n");
+    }
+
+    // Called by the compiled program
+    void printInt(int value) {
+        out.println(Integer.toString(value));
+    }
+    void printBool(int value) {
+        out.println((value != 0) ? "true" : "false");
+    }
+    int divide(int left, int right, int offset) {
+        if(right == 0)
+            throw new ArithmeticException("at " + lines.format(offset) + ", division by zero");
+        return left / right;
+    }
+
+    /**
+     * load()
+     * Defines the class as a hidden class of this package and returns its
+     * run() method, or null if the class is missing or not accepted.
+     */
+    MethodHandle load(byte[] bytes) {
+        if(bytes == null)
+            return null;
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.lookup().defineHiddenClass(bytes, true);
+            return lookup.findStatic(lookup.lookupClass(), "run", MethodType.methodType(void.class, ClassCompiler.class));
+        } catch(IllegalAccessException | NoSuchMethodException | LinkageError e) {
+            return null;
+        }
+    }
+
+    /**
+     * compile()
+     * Returns the class file of the program, or null if run() would be too long.
+     */
+    byte[] compile(ASTNode root, int slots) {
+        body(root);
+        op(RETURN, 0);
+        if(length > MAX_BRANCH)
+            return null;
+
+        int thisClass = classRef(NAME);
+        int superClass = classRef("java/lang/Object");
+        int runName = utf8("run");
+        int runType = utf8(RUN);
+        int codeName = utf8("Code");
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        u4(bytes, 0xCAFEBABE);
+        u2(bytes, 0);
+        u2(bytes, 49); // Java 5 class file, checked without stack map frames
+        u2(bytes, poolCount);
+        bytes.write(pool.toByteArray(), 0, pool.size());
+        u2(bytes, 0x0031); // public final super
+        u2(bytes, thisClass);
+        u2(bytes, superClass);
+        u2(bytes, 0); // Interfaces
+        u2(bytes, 0); // Fields
+        u2(bytes, 1); // Methods
+        u2(bytes, 0x0009); // public static
+        u2(bytes, runName);
+        u2(bytes, runType);
+        u2(bytes, 1); // Attributes of run()
+        u2(bytes, codeName);
+        u4(bytes, 12 + length);
+        u2(bytes, maxStack);
+        u2(bytes, slots + 1);
+        u4(bytes, length);
+        bytes.write(code, 0, length);
+        u2(bytes, 0); // Exception table
+        u2(bytes, 0); // Attributes of Code
+        u2(bytes, 0); // Attributes of the class
+        return bytes.toByteArray();
+    }
+
+    void body(ASTNode n) {
+        // Declarations start their variables at 0
+        while(n.code == AST.SEQ && n.child0.code == AST.DECL) {
+            push(0);
+            store(n.child0.slot + 1);
+            n = n.child1;
+        }
+        for(ASTNode statement : Interpreter.statements(n))
+            statement(statement);
+    }
+
+    void statement(ASTNode n) {
+        switch(n.code) {
+            case AST.ASSIGNMENT:
+                expression(n.child1);
+                store(n.child0.slot + 1);
+                break;
+            case AST.IF:
+                int toElse = branch(n.child0, false);
+                body(n.child1);
+                if(n.child2 != null) {
+                    int toEnd = length;
+                    op(GOTO, 0);
+                    u2(0);
+                    patch(toElse, length);
+                    body(n.child2);
+                    patch(toEnd, length);
+                } else
+                    patch(toElse, length);
+                break;
+            case AST.WHILE:
+                int toTest = length;
+                op(GOTO, 0);
+                u2(0);
+                int top = length;
+                body(n.child1);
+                patch(toTest, length);
+                patch(branch(n.child0, true), top);
+                break;
+            case AST.PRINT_INT:
+            case AST.PRINT_BOOL:
+                op(ALOAD_0, 1);
+                expression(n.child0);
+                invoke((n.code == AST.PRINT_INT) ? "printInt" : "printBool", "(I)V", -2);
+                break;
+        }
+    }
+
+    /**
+     * branch()
+     * Emits a jump taken when the condition is the given truth value and
+     * returns where it is, for patch().
+     */
+    int branch(ASTNode condition, boolean when) {
+        int at;
+        if(condition.code >= AST.OP_LT && condition.code <= AST.OP_GT) {
+            expression(condition.child0);
+            expression(condition.child1);
+            at = length;
+            int relation = condition.code - AST.OP_LT;
+            op(when ? IF_HOLDS[relation] : IF_FAILS[relation], -2);
+        } else {
+            expression(condition);
+            at = length;
+            op(when ? IFNE : IFEQ, -1);
+        }
+        u2(0);
+        return at;
+    }
+    void patch(int at, int target) {
+        int offset = target - at;
+        code[at + 1] = (byte)(offset >> 8);
+        code[at + 2] = (byte) offset;
+    }
+
+    void expression(ASTNode n) {
+        switch(n.code) {
+            case AST.INT_LITERAL:
+            case AST.BOOL_LITERAL:
+                push(n.slot);
+                break;
+            case AST.VARIABLE:
+                load(n.slot + 1);
+                break;
+            case AST.OP_NOT:
+                expression(n.child0);
+                if(n.not) {
+                    push(1);
+                    op(IXOR, -1);
+                } else
+                    op(INEG, 0);
+                break;
+            case AST.OP_PLUS: binary(n, IADD); break;
+            case AST.OP_MINUS: binary(n, ISUB); break;
+            case AST.OP_MULT: binary(n, IMUL); break;
+            case AST.OP_OR: binary(n, IOR); break;
+            case AST.OP_AND: binary(n, IAND); break;
+            case AST.OP_DIV:
+                op(ALOAD_0, 1);
+                expression(n.child0);
+                expression(n.child1);
+                push(n.offset);
+                invoke("divide", "(III)I", -3);
+                break;
+            default: // Relational, as 1 or 0
+                expression(n.child0);
+                expression(n.child1);
+                op(IF_HOLDS[n.code - AST.OP_LT], -2);
+                u2(7);
+                push(0);
+                op(GOTO, -1); // The other way pushes 1 instead
+                u2(4);
+                push(1);
+                break;
+        }
+    }
+    void binary(ASTNode n, int opcode) {
+        expression(n.child0);
+        expression(n.child1);
+        op(opcode, -1);
+    }
+
+    void push(int value) {
+        if(value >= -1 && value <= 5)
+            op(ICONST_0 + value, 1);
+        else if(value == (byte) value) {
+            op(BIPUSH, 1);
+            u1(value);
+        } else if(value == (short) value) {
+            op(SIPUSH, 1);
+            u2(value);
+        } else {
+            int index = integer(value);
+            if(index <= 255) {
+                op(LDC, 1);
+                u1(index);
+            } else {
+                op(LDC_W, 1);
+                u2(index);
+            }
+        }
+    }
+    void load(int local) {
+        local(ILOAD, ILOAD_0, local, 1);
+    }
+    void store(int local) {
+        local(ISTORE, ISTORE_0, local, -1);
+    }
+    void local(int opcode, int short0, int local, int delta) {
+        if(local <= 3)
+            op(short0 + local, delta);
+        else if(local <= 255) {
+            op(opcode, delta);
+            u1(local);
+        } else {
+            op(WIDE, 0);
+            u1(opcode);
+            u2(local);
+        }
+    }
+    void invoke(String name, String type, int delta) {
+        int method = methodRef(name, type);
+        op(INVOKEVIRTUAL, delta);
+        u2(method);
+    }
+
+    void op(int opcode, int delta) {
+        u1(opcode);
+        depth += delta;
+        maxStack = Math.max(maxStack, depth);
+    }
+    void u1(int value) {
+        if(length == code.length)
+            code = Arrays.copyOf(code, length * 2);
+        code[length++] = (byte) value;
+    }
+    void u2(int value) {
+        u1(value >> 8);
+        u1(value);
+    }
+
+    /**
+     * utf8(), classRef(), integer(), methodRef()
+     * Return the constant pool index of an entry, adding it the first time.
+     * Methods are those of this class that the program calls.
+     */
+    int utf8(String text) {
+        Integer index = poolIndex.get("U" + text);
+        if(index != null)
+            return index;
+        pool.write(1);
+        u2(pool, text.length()); // Names here are ASCII
+        pool.write(text.getBytes(StandardCharsets.US_ASCII), 0, text.length());
+        return added("U" + text);
+    }
+    int classRef(String name) {
+        Integer index = poolIndex.get("C" + name);
+        if(index != null)
+            return index;
+        int nameIndex = utf8(name);
+        pool.write(7);
+        u2(pool, nameIndex);
+        return added("C" + name);
+    }
+    int integer(int value) {
+        Integer index = poolIndex.get("I" + value);
+        if(index != null)
+            return index;
+        pool.write(3);
+        u4(pool, value);
+        return added("I" + value);
+    }
+    int methodRef(String name, String type) {
+        Integer index = poolIndex.get("M" + name + type);
+        if(index != null)
+            return index;
+        int owner = classRef("ClassCompiler");
+        int nameIndex = utf8(name);
+        int typeIndex = utf8(type);
+        pool.write(12); // NameAndType
+        u2(pool, nameIndex);
+        u2(pool, typeIndex);
+        int nameAndType = poolCount++;
+        pool.write(10);
+        u2(pool, owner);
+        u2(pool, nameAndType);
+        return added("M" + name + type);
+    }
+    int added(String key) {
+        poolIndex.put(key, poolCount);
+        return poolCount++;
+    }
+
+    static void u2(ByteArrayOutputStream bytes, int value) {
+        bytes.write(value >> 8);
+        bytes.write(value);
+    }
+    static void u4(ByteArrayOutputStream bytes, int value) {
+        u2(bytes, value >>> 16);
+        u2(bytes, value);
+    }
+}
+
+/**
+ * class OutputSink
+ * OutputSink is where all of the program's output goes.
+ * Text is collected in a reusable character buffer and handed to write()
+ * in large blocks, and fixed-width columns are padded by hand rather than
+ * with String.format, which matters for token dumps of large files.
+ * The sinks are: buffered stdout, a file, memory, or discard.
+ */
+abstract class OutputSink {
+    static final int BUFFER_SIZE = 1 << 16;
+    static final String NEWLINE = System.lineSeparator();
+
+    char[] buffer;
+    int length;
+
+    // Constructor
+    public OutputSink() {
+        buffer = new char[BUFFER_SIZE];
+        length = 0;
+    }
+
+    /**
+     * stdout(), file(), memory(), discard()
+     * Create the different kinds of sinks.
+     */
+    public static OutputSink stdout() {
+        return new StreamSink(System.out);
+    }
+    public static OutputSink file(String filename) throws IOException {
+        return new StreamSink(new FileOutputStream(filename));
+    }
+    public static OutputSink memory() {
+        return new MemorySink();
+    }
+    public static OutputSink discard() {
+        return new DiscardSink();
+    }
+
+    /**
+     * write()
+     * Takes a block of buffered characters.
+     */
+    abstract void write(char[] chars, int count);
+
+    /**
+     * print(), println()
+     * Add text, and a line separator for println() like PrintStream.
+     */
+    public void print(String text) {
+        reserve(text.length());
+        text.getChars(0, text.length(), buffer, length);
+        length += text.length();
+    }
+    public void println(String text) {
+        print(text);
+        println();
+    }
+    public void println() {
+        print(NEWLINE);
+    }
+
+    /**
+     * column()
+     * Adds the text left-justified in a column of the given width,
+     * padded with spaces. Like %-Ns, longer text is not cut.
+     */
+    public void column(String text, int width) {
+        if(text == null) text = "null";
+        int padded = Math.max(text.length(), width);
+        reserve(padded);
+        text.getChars(0, text.length(), buffer, length);
+        Arrays.fill(buffer, length + text.length(), length + padded, ' ');
+        length += padded;
+    }
+
+    /**
+     * position()
+     * Adds the "line:letter" of the offset as a column,
+     * without building the string.
+     */
+    public void position(LineIndex lines, int offset, int width) {
+        int line = lines.line(offset);
+        reserve(Math.max(23, width));
+        int start = length;
+        number(line + 1);
+        buffer[length++] = ':';
+        number(offset - lines.start(line) + 1);
+        while(length - start < width)
+            buffer[length++] = ' ';
+    }
+
+    void number(int value) {
+        int digits = 1;
+        for(int v = value; v >= 10; v /= 10) digits++;
+        for(int i = length + digits - 1; i >= length; i--) {
+            buffer[i] = (char)('0' + value % 10);
+            value /= 10;
+        }
+        length += digits;
+    }
+
+    /**
+     * reserve()
+     * Makes room for count more characters, writing out the buffer when full.
+     */
+    void reserve(int count) {
+        if(length + count <= buffer.length) return;
+        if(length > 0) write(buffer, length);
+        length = 0;
+        if(count > buffer.length)
+            buffer = new char[count];
+    }
+
+    /**
+     * flush(), close()
+     * Write out whatever is buffered; close() also releases a file.
+     */
+    public void flush() {
+        if(length > 0) write(buffer, length);
+        length = 0;
+    }
+    public void close() {
+        flush();
+    }
+}
+
+/**
+ * class StreamSink
+ * Sink that encodes its blocks to bytes for an OutputStream (stdout or a file).
+ */
+class StreamSink extends OutputSink {
+    OutputStream stream;
+    Charset charset;
+    byte[] bytes;
+
+    // Constructor
+    public StreamSink(OutputStream stream) {
+        this.stream = stream;
+        charset = Charset.defaultCharset();
+        bytes = new byte[BUFFER_SIZE];
+    }
+
+    void write(char[] chars, int count) {
+        try {
+            // ASCII is copied straight across, anything else goes through the charset
+            int i = 0;
+            if(bytes.length < count) bytes = new byte[count];
+            while(i < count && chars[i] < 0x80) {
+                bytes[i] = (byte)chars[i];
+                i++;
+            }
+            if(i == count)
+                stream.write(bytes, 0, count);
+            else
+                stream.write(new String(chars, 0, count).getBytes(charset));
+        } catch(IOException e) {}
+    }
+
+    public void flush() {
+        super.flush();
+        try { stream.flush(); } catch(IOException e) {}
+    }
+
+    public void close() {
+        flush();
+        if(stream != System.out)
+            try { stream.close(); } catch(IOException e) {}
+    }
+}
+
+/**
+ * class MemorySink
+ * Sink that keeps the output in memory, returned by toString().
+ */
+class MemorySink extends OutputSink {
+    StringBuilder text = new StringBuilder();
+
+    void write(char[] chars, int count) {
+        text.append(chars, 0, count);
+    }
+
+    public String toString() {
+        flush();
+        return text.toString();
+    }
+}
+
+/**
+ * class DiscardSink
+ * Sink that throws the output away.
+ */
+class DiscardSink extends OutputSink {
+    void write(char[] chars, int count) {}
+}
+
+/**
+ * class LineIndex
+ * 
+ * LineIndex records the source offset at which each line starts.
+ * Tokens and AST nodes only store an offset, and the "line:letter"
+ * text is worked out here when an error or the AST display needs it.
+ * After an edit the starts are kept with a gap at the edit: those past
+ * it are stored less 'shift', so the lines after an edit move by
+ * changing 'shift' alone.
+ */
+class LineIndex {
+    int[] starts;
+    int count;
+    int gap, gapLength; // Entries gap to gap + gapLength - 1 are unused
+    int shift; // Added to the starts past the gap
+
+    // Constructor
+    public LineIndex() {
+        starts = new int[256];
+        starts[0] = 0;
+        count = 1;
+    }
+
+    /**
+     * add()
+     * Records that a line starts at the given offset.
+     * Offsets are added in order as the lexer passes line breaks,
+     * so an offset that is already known is ignored.
+     */
+    public void add(int offset) {
+        if(offset <= start(count - 1)) return;
+        if(count + gapLength == starts.length)
+            starts = Arrays.copyOf(starts, starts.length * 2);
+        starts[count + gapLength] = offset - shift;
+        count ++;
+    }
+
+    /**
+     * start()
+     * Returns the offset at which the given line starts.
+     */
+    public int start(int line) {
+        return (line < gap) ? starts[line] : starts[line + gapLength] + shift;
+    }
+
+    /**
+     * line()
+     * Returns the index of the line holding the offset.
+     */
+    public int line(int offset) {
+        int low = 0, high = count - 1;
+        while(low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if(start(mid) <= offset)
+                low = mid;
+            else
+                high = mid - 1;
+        }
+        return low;
+    }
+
+    /**
+     * format()
+     * Returns the line and letter of the offset as "line:letter",
+     * both counting from 1.
+     */
+    public String format(int offset) {
+        int line = line(offset);
+        return "" + (line + 1) + ":" + (offset - start(line) + 1);
+    }
+
+    /**
+     * edit()
+     * Updates the index for the text after replacing the removed characters
+     * at offset with the inserted text, and returns it. Line starts before
+     * the edit are kept, those after it are shifted, and the inserted text's
+     * line breaks are added. The gap is moved to the edit first, which costs
+     * the lines between this edit and the last one.
+     * This index must hold every line of the old text.
+     */
+    public LineIndex edit(int offset, int removed, String inserted) {
+        int first = line(offset) + 1; // Lines that start in the removed text
+        int end = line(offset + removed) + 1;
+        moveGap(end);
+        gap = first;
+        gapLength += end - first;
+        count -= end - first;
+        for(int j = 0; j < inserted.length(); j++) {
+            if(inserted.charAt(j) != '\n') continue;
+            if(gapLength == 0) {
+                int[] grown = new int[starts.length * 2];
+                System.arraycopy(starts, 0, grown, 0, gap);
+                System.arraycopy(starts, gap, grown, gap + starts.length, count - gap);
+                gapLength = starts.length;
+                starts = grown;
+            }
+            starts[gap++] = offset + j + 1;
+            gapLength --;
+            count ++;
+        }
+        shift += inserted.length() - removed;
+        return this;
+    }
+
+    void moveGap(int to) {
+        for(; gap > to; gap--)
+            starts[gap - 1 + gapLength] = starts[gap - 1] - shift;
+        for(; gap < to; gap++)
+            starts[gap] = starts[gap + gapLength] + shift;
+    }
+}
+
+/**
+ * enum TokenKind
+ * 
+ * Kinds of tokens produced by the lexer. Each kind keeps the
+ * text it was known by when kinds were Strings, which is what
+ * toString() returns for display and error messages.
+ * 
+ * Keywords are recognized with a perfect hash over the first character,
+ * last character and length of a word, checked directly against the
+ * source buffer so no String is created for a keyword.
+ */
+enum TokenKind {
+    ID("ID"),
+    NUM("NUM"),
+    // Keywords
+    PROGRAM("program", true),
+    BOOL("bool", true),
+    END("end", true),
+    INT("int", true),
+    IF("if", true),
+    THEN("then", true),
+    ELSE("else", true),
+    FI("fi", true),
+    WHILE("while", true),
+    DO("do", true),
+    OD("od", true),
+    PRINT("print", true),
+    OR("or", true),
+    AND("and", true),
+    NOT("not", true),
+    FALSE("false", true),
+    TRUE("true", true),
+    // Symbols
+    LT("<"),
+    EQLT("=<"),
+    EQ("="),
+    NOTEQ("!="),
+    GTEQ(">="),
+    GT(">"),
+    PLUS("+"),
+    MINUS("-"),
+    MULT("*"),
+    DIV("/"),
+    LPAREN("("),
+    RPAREN(")"),
+    SEMICOLON(";"),
+    COLON(":"),
+    ASSIGN(":="),
+    EOF("end-of-text");
+
+    // Keyword table, indexed by keywordHash(). The multipliers were chosen
+    // so that no two keywords share a slot (checked when the class loads).
+    static final int KEYWORD_SLOTS = 32;
+    static final TokenKind[] keywords = new TokenKind[KEYWORD_SLOTS];
+    static {
+        for(TokenKind k : values()) {
+            if(!k.keyword) continue;
+            int slot = keywordHash(k.text.charAt(0), k.text.charAt(k.text.length() - 1), k.text.length());
+            if(keywords[slot] != null)
+                throw new AssertionError("Keyword hash collision: " + k.text + ", " + keywords[slot].text);
+            keywords[slot] = k;
+        }
+        if(values().length > 64)
+            throw new AssertionError("Too many token kinds for a long bitmask");
+    }
+
+    final String text;
+    final boolean keyword;
+    final long bit; // This kind's bit in a set of token kinds (see setOf())
+
+    // Constructor
+    TokenKind(String text) {
+        this(text, false);
+    }
+    TokenKind(String text, boolean keyword) {
+        this.text = text;
+        this.keyword = keyword;
+        this.bit = 1L << ordinal();
+    }
+
+    /**
+     * setOf()
+     * Returns a set of token kinds as a bitmask, one bit per kind,
+     * so membership is a single AND. There are fewer than 64 kinds.
+     */
+    static long setOf(TokenKind... kinds) {
+        long set = 0;
+        for(TokenKind k : kinds)
+            set |= k.bit;
+        return set;
+    }
+
+    static int keywordHash(char first, char last, int length) {
+        return (first * 7 + last * 8 + length) & (KEYWORD_SLOTS - 1);
+    }
+
+    /**
+     * keyword()
+     * Returns the keyword spelled by the given range of the source,
+     * or null if the word is an identifier.
+     */
+    static TokenKind keyword(SourceBuffer source, int start, int length) {
+        char first = source.charAt(start);
+        char last = source.charAt(start + length - 1);
+        TokenKind k = keywords[keywordHash(first, last, length)];
+        if(k == null || k.text.length() != length)
+            return null;
+        for(int i = 0; i < length; i++)
+            if(source.charAt(start + i) != k.text.charAt(i))
+                return null;
+        return k;
+    }
+
+    @Override
+    public String toString() {
+        return text;
+    }
+}
+
+/**
+ * class Token
+ * 
+ * Token holds the source offset, kind, and value
+ * of the current token being processed.
+ */
+class Token {
+    int offset;
+    TokenKind kind;
+    String value;
+    int symbol; // Symbol id of an identifier, otherwise -1
+
+    // Constructor
+    public Token() {
+        this.offset = 0;
+        this.symbol = -1;
+    }
+    public Token(int offset, TokenKind kind, String value) {
+        this.offset = offset;
+        this.kind = kind;
+        this.value = value;
+        this.symbol = -1;
+    }
+
+    public TokenKind getKind() { return kind; }
+    public void setKind(TokenKind kind) { this.kind = kind; }
+    public String getValue() { return value; }
+    public Integer getValueInt() { return Integer.parseInt(value); }
+    public void setValue(String value) { this.value = value; }
+    public int getOffset() { return offset; }
+    public void setOffset(int offset) { this.offset = offset; }
+    public int getSymbol() { return symbol; }
+    public void setSymbol(int symbol) { this.symbol = symbol; }
+};
+
+/**
+ * class SymbolTable
+ * 
+ * SymbolTable interns identifiers: each distinct spelling gets a dense
+ * int symbol id, found through an open-addressed hash table. The lexer
+ * computes the hash while it scans and looks the spelling up straight
+ * from the source buffer, so an identifier's String is only created
+ * the first time it is seen. Later phases can index arrays by symbol id.
+ */
+class SymbolTable {
+    int[] table; // Symbol id + 1 per slot, 0 when empty
+    int[] hashes; // Hash of each symbol
+    String[] names; // Spelling of each symbol
+    int count;
+
+    // Constructor
+    public SymbolTable() {
+        table = new int[256];
+        hashes = new int[128];
+        names = new String[128];
+        count = 0;
+    }
+
+    /**
+     * hash()
+     * Adds one character to a running hash (same as String.hashCode()).
+     */
+    static int hash(int hash, int c) {
+        return 31 * hash + c;
+    }
+
+    /**
+     * intern()
+     * Returns the symbol id for the given range of the source, adding it
+     * if it is new. The hash must be the hash() of the range's characters.
+     */
+    public int intern(SourceBuffer source, int start, int length, int hash) {
+        int mask = table.length - 1;
+        int slot = mix(hash) & mask;
+        while(table[slot] != 0) {
+            int id = table[slot] - 1;
+            if(hashes[id] == hash && matches(names[id], source, start, length))
+                return id;
+            slot = (slot + 1) & mask;
+        }
+        return add(slot, hash, source.substring(start, length));
+    }
+
+    /**
+     * intern()
+     * Returns the symbol id for the given name, adding it if it is new.
+     */
+    public int intern(String name) {
+        int hash = name.hashCode();
+        int mask = table.length - 1;
+        int slot = mix(hash) & mask;
+        while(table[slot] != 0) {
+            int id = table[slot] - 1;
+            if(hashes[id] == hash && names[id].equals(name))
+                return id;
+            slot = (slot + 1) & mask;
+        }
+        return add(slot, hash, name);
+    }
+
+    public String name(int id) { return names[id]; }
+    public int size() { return count; }
+
+    // Spreads the high bits of String-style hashes before masking
+    static int mix(int hash) {
+        return hash ^ (hash >>> 16);
+    }
+
+    static boolean matches(String name, SourceBuffer source, int start, int length) {
+        if(name.length() != length) return false;
+        for(int i = 0; i < length; i++)
+            if(name.charAt(i) != source.charAt(start + i))
+                return false;
+        return true;
+    }
+
+    int add(int slot, int hash, String name) {
+        if(count == names.length) {
+            hashes = Arrays.copyOf(hashes, count * 2);
+            names = Arrays.copyOf(names, count * 2);
+        }
+        int id = count++;
+        hashes[id] = hash;
+        names[id] = name;
+        table[slot] = id + 1;
+
+        // Keep the table at most half full
+        if(count * 2 > table.length) {
+            int[] old = table;
+            table = new int[old.length * 2];
+            int mask = table.length - 1;
+            for(int entry : old) {
+                if(entry == 0) continue;
+                int s = mix(hashes[entry - 1]) & mask;
+                while(table[s] != 0)
+                    s = (s + 1) & mask;
+                table[s] = entry;
+            }
+        }
+        return id;
+    }
+}
+
+
+/**
+ * class SourceBuffer
+ * 
+ * SourceBuffer is the character source for the lexer and replaces
+ * the Scanner-backed ParseScanner. The file is read through a FileChannel:
+ * large files are memory-mapped, smaller files are read in chunks into
+ * a single direct buffer. Characters are read at a primitive cursor, so
+ * next(), peek() and putback() never allocate.
+ * Source files are plain ASCII, so each byte is read as one character.
+ * The line index is filled in by the lexer as it passes line breaks.
+ * The first edit() copies the text into a heap array with a gap at the
+ * edit, so later edits only move the text between them.
+ */
+class SourceBuffer {
+    static final int MAP_THRESHOLD = 1 << 20; // Files of this size or larger are memory-mapped
+    static final int CHUNK_SIZE = 1 << 16; // Size of each read for smaller files
+
+    ByteBuffer buffer;
+    int limit; // Length of the text
+    int gap, gapLength; // Bytes gap to gap + gapLength - 1 of the buffer are not text
+    final LineIndex lines;
+    int cursor;
+
+    // Constructor
+    public SourceBuffer(String filename) throws IOException {
+        this.lines = new LineIndex();
+        try(FileChannel channel = FileChannel.open(Paths.get(filename), StandardOpenOption.READ)) {
+            long size = channel.size();
+            if(size > Integer.MAX_VALUE)
+                throw new IOException("File too large: " + filename);
+
+            if(size >= MAP_THRESHOLD) {
+                buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            } else {
+                buffer = ByteBuffer.allocateDirect((int) size);
+                while(buffer.hasRemaining()) {
+                    buffer.limit(Math.min(buffer.position() + CHUNK_SIZE, buffer.capacity()));
+                    if(channel.read(buffer) < 0) break; // File shrank while reading
+                    buffer.limit(buffer.capacity());
+                }
+                buffer.flip();
+            }
+        }
+        this.limit = buffer.limit();
+        this.cursor = 0;
+    }
+
+    /**
+     * edit()
+     * Replaces the removed characters at offset by the inserted text and
+     * returns this source. Its line index is edited too, so this source
+     * must have been lexed to the end.
+     */
+    public SourceBuffer edit(int offset, int removed, String inserted) {
+        byte[] text = inserted.getBytes(StandardCharsets.ISO_8859_1);
+        if(!buffer.hasArray() || gapLength + removed < text.length) {
+            // Copy into a larger array, with the gap at the edit
+            int length = limit - removed + text.length;
+            byte[] copy = new byte[length + Math.max(1024, length >> 3)];
+            int tail = limit - offset - removed;
+            get(0, copy, 0, offset);
+            get(offset + removed, copy, copy.length - tail, tail);
+            buffer = ByteBuffer.wrap(copy);
+            gap = offset;
+            gapLength = copy.length - offset - tail;
+        } else {
+            // Move the gap to the edit, then widen it over the removed characters
+            byte[] array = buffer.array();
+            if(offset < gap)
+                System.arraycopy(array, offset, array, offset + gapLength, gap - offset);
+            else
+                System.arraycopy(array, gap + gapLength, array, gap, offset - gap);
+            gap = offset;
+            gapLength += removed;
+        }
+        buffer.put(gap, text);
+        gap += text.length;
+        gapLength -= text.length;
+        limit += text.length - removed;
+        lines.edit(offset, removed, inserted);
+        return this;
+    }
+
+    // Copies length characters from offset into the array, across the gap
+    void get(int offset, byte[] to, int at, int length) {
+        int before = Math.max(0, Math.min(length, gap - offset));
+        buffer.get(offset, to, at, before);
+        buffer.get(offset + before + gapLength, to, at + before, length - before);
+    }
+
+    /**
+     * next()
+     * Returns the character at the cursor and advances it.
+     */
+    public char next() {
+        return charAt(cursor++);
+    }
+
+    /**
+     * hasNext()
+     * Checks for an available character.
+     */
+    public boolean hasNext() {
+        return cursor < limit;
+    }
+
+    /**
+     * peek()
+     * Returns the next character without advancing.
+     * Peek() does not check that a character exists,
+     * this must be done prior to calling peek().
+     */
+    public char peek() {
+        return charAt(cursor);
+    }
+
+    /**
+     * charAt()
+     * Returns the character at the given offset.
+     */
+    public char charAt(int offset) {
+        if(offset >= gap) offset += gapLength;
+        return (char) (buffer.get(offset) & 0xFF);
+    }
+
+    /**
+     * substring()
+     * Returns the given range of the source as a String.
+     */
+    public String substring(int start, int length) {
+        byte[] bytes = new byte[length];
+        get(start, bytes, 0, length);
+        return new String(bytes, StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * putback()
+     * Steps the cursor back over the given character,
+     * which must be the last character returned by next().
+     */
+    public void putback(char c) {
+        cursor--;
+    }
+
+    /**
+     * skipLine()
+     * Moves the cursor past the next line break
+     * (or to the end of the input) without returning the line.
+     * Returns false if the input ended first.
+     */
+    public boolean skipLine() {
+        while(cursor < limit)
+            if(charAt(cursor++) == '\n') return true;
+        return false;
+    }
+
+    /**
+     * close()
+     * Nothing to release: the channel is closed after reading and
+     * a mapped buffer is unmapped when it is garbage collected.
+     */
+    public void close() {}
+}
+
+/**
+ * class TableLexer
+ * 
+ * TableLexer is a table-driven lexer that produces exactly the same tokens
+ * and positions as Project2.next(). Characters are mapped to a class through
+ * a 128-entry table, and a DFA generated once from the token spec (identifiers,
+ * numbers, the symbol spellings in TokenKind and "//" comments) decides
+ * where each token ends. Errors are returned rather than printed, so the
+ * caller decides how to report them. Line starts are recorded in the
+ * line index of the source as line breaks are passed.
+ */
+class TableLexer {
+    // Character classes (each symbol character gets its own class after SYMBOL)
+    static final int OTHER = 0;
+    static final int SPACE = 1;
+    static final int NEWLINE = 2;
+    static final int LETTER = 3;
+    static final int DIGIT = 4;
+    static final int UNDERSCORE = 5;
+    static final int SYMBOL = 6;
+    static final String SYMBOL_CHARS = "/<>=!+-*();:";
+    static final int CLASSES = SYMBOL + SYMBOL_CHARS.length();
+    static final byte[] charClass = new byte[128];
+
+    // Fixed states; states for symbols are numbered after these
+    static final int START = 0;
+    static final int IDENTIFIER = 1;
+    static final int NUMBER = 2;
+    static final int COMMENT = 3;
+    static final int STOP = -1;
+
+    static final int[] transitions; // [state * CLASSES + class] -> next state, or STOP
+    static final TokenKind[] accept; // Token kind of a final state, null otherwise
+
+    static {
+        for(char c = 'a'; c <= 'z'; c++) charClass[c] = LETTER;
+        for(char c = 'A'; c <= 'Z'; c++) charClass[c] = LETTER;
+        for(char c = '0'; c <= '9'; c++) charClass[c] = DIGIT;
+        charClass['_'] = UNDERSCORE;
+        charClass[' '] = SPACE;
+        charClass['\t'] = SPACE;
+        charClass['\r'] = SPACE;
+        charClass['\n'] = NEWLINE;
+        for(int i = 0; i < SYMBOL_CHARS.length(); i++)
+            charClass[SYMBOL_CHARS.charAt(i)] = (byte) (SYMBOL + i);
+
+        // Worst case every symbol character is a new state
+        int maxStates = COMMENT + 1;
+        for(TokenKind k : TokenKind.values())
+            maxStates += k.text.length();
+        transitions = new int[maxStates * CLASSES];
+        accept = new TokenKind[maxStates];
+        Arrays.fill(transitions, STOP);
+
+        // Identifier: Letter { Letter | Digit | "_" }
+        transitions[START * CLASSES + LETTER] = IDENTIFIER;
+        transitions[IDENTIFIER * CLASSES + LETTER] = IDENTIFIER;
+        transitions[IDENTIFIER * CLASSES + DIGIT] = IDENTIFIER;
+        transitions[IDENTIFIER * CLASSES + UNDERSCORE] = IDENTIFIER;
+        accept[IDENTIFIER] = TokenKind.ID;
+
+        // Number: Digit { Digit }
+        transitions[START * CLASSES + DIGIT] = NUMBER;
+        transitions[NUMBER * CLASSES + DIGIT] = NUMBER;
+        accept[NUMBER] = TokenKind.NUM;
+
+        // Symbols: one path per spelling, sharing common prefixes
+        int states = COMMENT + 1;
+        for(TokenKind k : TokenKind.values()) {
+            if(!isSymbol(k.text)) continue;
+            int state = START;
+            for(int i = 0; i < k.text.length(); i++) {
+                int edge = state * CLASSES + charClass[k.text.charAt(i)];
+                if(transitions[edge] == STOP)
+                    transitions[edge] = states++;
+                state = transitions[edge];
+            }
+            accept[state] = k;
+        }
+
+        // Comment: "//" continues from the state for "/"
+        transitions[transitions[START * CLASSES + charClass['/']] * CLASSES + charClass['/']] = COMMENT;
+    }
+
+    final SourceBuffer scan;
+    final int limit;
+    final LineIndex lines;
+    final SymbolTable symbols;
+    int start; // Source offset and length of the last token (or illegal character)
+    int length;
+    int errorOffset;
+    String errorMessage;
+
+    // Constructor
+    public TableLexer(SourceBuffer scan, SymbolTable symbols) {
+        this.scan = scan;
+        this.limit = scan.limit;
+        this.lines = scan.lines;
+        this.symbols = symbols;
+    }
+
+    static boolean isSymbol(String text) {
+        for(int i = 0; i < text.length(); i++)
+            if(SYMBOL_CHARS.indexOf(text.charAt(i)) < 0)
+                return false;
+        return true;
+    }
+
+    int classOf(int at) {
+        int c = scan.charAt(at);
+        return (c < 128) ? charClass[c] : OTHER;
+    }
+
+    /**
+     * next()
+     * Scans the next token into the given Token object.
+     * Returns false and sets errorOffset and errorMessage
+     * if the input holds an illegal token.
+     */
+    public boolean next(Token token) {
+        int cursor = scan.cursor;
+        while(true) {
+            // Remove whitespace before the token
+            int cls;
+            while(cursor < limit && ((cls = classOf(cursor)) == SPACE || cls == NEWLINE)) {
+                cursor ++;
+                if(cls == NEWLINE)
+                    lines.add(cursor);
+            }
+
+            if(cursor >= limit) { // End of input
+                scan.cursor = cursor;
+                this.start = cursor;
+                this.length = 0;
+                token.setKind(TokenKind.EOF);
+                token.setValue("");
+                token.setSymbol(-1);
+                token.setOffset(cursor);
+                return true;
+            }
+
+            // Run the DFA until no transition is possible
+            int start = this.start = cursor;
+            int state = START;
+            int hash = 0; // Symbol table hash, used if the token is an identifier
+            while(cursor < limit) {
+                int c = scan.charAt(cursor);
+                int next = transitions[state * CLASSES + ((c < 128) ? charClass[c] : OTHER)];
+                if(next == STOP) break;
+                state = next;
+                hash = SymbolTable.hash(hash, c);
+                cursor ++;
+                if(state == COMMENT) break;
+            }
+
+            if(state == COMMENT) { // Not a token, skip the rest of the line
+                scan.cursor = cursor;
+                boolean newline = scan.skipLine();
+                cursor = scan.cursor;
+                if(newline) lines.add(cursor);
+                continue;
+            }
+
+            TokenKind kind = accept[state];
+            if(kind == null) { // Illegal token, only its first character is consumed
+                scan.cursor = start + 1;
+                this.length = 1;
+                errorOffset = start;
+                char c = scan.charAt(start);
+                if(c == '!')
+                    errorMessage = "Illegal token: \'!\', missing \'=\'?";
+                else if(c == '_')
+                    errorMessage = "Illegal token: \'_\', used in identifier?";
+                else
+                    errorMessage = "Symbol \'" + c + "\' not allowed";
+                return false;
+            }
+
+            int length = this.length = cursor - start;
+            scan.cursor = cursor;
+            token.setOffset(start);
+            if(kind == TokenKind.ID) {
+                TokenKind keyword = TokenKind.keyword(scan, start, length);
+                if(keyword != null) { // Keyword
+                    token.setKind(keyword);
+                    token.setValue("");
+                    token.setSymbol(-1);
+                } else { // Identifier
+                    int symbol = symbols.intern(scan, start, length, hash);
+                    token.setKind(TokenKind.ID);
+                    token.setValue(symbols.name(symbol));
+                    token.setSymbol(symbol);
+                }
+            } else if(kind == TokenKind.NUM) {
+                token.setKind(TokenKind.NUM);
+                token.setValue(scan.substring(start, length));
+                token.setSymbol(-1);
+            } else {
+                token.setKind(kind);
+                token.setValue("");
+                token.setSymbol(-1);
+            }
+            return true;
+        }
+    }
+}
+
+/**
+ * class TokenBuffer
+ * 
+ * TokenBuffer holds every token of a file, lexed up front, in parallel
+ * primitive arrays: kind, source offset and length. Identifiers keep
+ * their symbol id, and number text and error messages are kept in a
+ * side table, whose slots are reused as relex() replaces tokens. The
+ * parser reads tokens by index, so any token can be looked at without
+ * lexing again.
+ * After an edit of the source, relex() updates it by lexing only the
+ * part of the source that the edit can have changed. The arrays keep a
+ * gap at the last edit, and the starts past it are stored less 'shift',
+ * so the new tokens are put in the gap and the tokens after them move
+ * by changing 'shift' alone.
+ */
+class TokenBuffer {
+    static final TokenKind[] KINDS = TokenKind.values();
+    static final byte ERROR = -1; // Kind code of an illegal token, its value is the message
+    static final byte ID = (byte) TokenKind.ID.ordinal();
+
+    byte[] kinds = new byte[1024]; // TokenKind ordinal, or ERROR
+    int[] starts = new int[1024];
+    int[] lengths = new int[1024];
+    int[] payloads = new int[1024]; // Symbol id of an identifier, index into values, or -1
+    int gap = 0, gapLength = 0; // Entries gap to gap + gapLength - 1 are unused
+    int shift = 0; // Added to the starts past the gap
+    String[] values = new String[256];
+    int[] freeValues = new int[16]; // Slots of values that no token uses any more
+    int size = 0;
+    int valueCount = 0;
+    int freeCount = 0;
+    int relexed = 0; // Tokens lexed by the last relex()
+    final SymbolTable symbols;
+
+    // Constructor
+    public TokenBuffer(SymbolTable symbols) {
+        this.symbols = symbols;
+    }
+
+    /**
+     * lex()
+     * Lexes the whole input of the given lexer into a new buffer.
+     * The last token is always end-of-text.
+     */
+    static TokenBuffer lex(TableLexer lexer) {
+        TokenBuffer tokens = new TokenBuffer(lexer.symbols);
+        Token token = new Token();
+        while(tokens.lexNext(lexer, token) != EOF);
+        return tokens;
+    }
+    static final byte EOF = (byte) TokenKind.EOF.ordinal();
+
+    /**
+     * lexNext()
+     * Lexes the next token, or illegal character, onto the end of the buffer
+     * and returns its kind code.
+     */
+    byte lexNext(TableLexer lexer, Token token) {
+        if(!lexer.next(token)) {
+            add(ERROR, lexer.errorOffset, 1, addValue(lexer.errorMessage));
+            return ERROR;
+        }
+        TokenKind kind = token.getKind();
+        int payload = -1;
+        if(kind == TokenKind.ID)
+            payload = token.getSymbol();
+        else if(kind == TokenKind.NUM)
+            payload = addValue(token.getValue());
+        add((byte) kind.ordinal(), lexer.start, lexer.length, payload);
+        return (byte) kind.ordinal();
+    }
+
+    /**
+     * relex()
+     * Updates the tokens of source for an edit that replaces the removed
+     * characters at offset with the inserted text, and returns the edited source.
+     * 
+     * Lexing restarts at the last token that starts before the edit, since
+     * it may run into the edit (":" followed by an inserted "=", or a "/"
+     * that becomes a "//" comment). It stops at the first new token past the
+     * edit that has the kind and the shifted offset of an old token: lexing
+     * from there depends only on unchanged text, so the rest of the old
+     * tokens are kept with their offsets shifted. Comments and line breaks
+     * between tokens need nothing special, they are skipped by the lexer
+     * from the restart point like any other text.
+     * The new tokens are put in the gap, after moving it to the edit, so
+     * the work is the tokens lexed plus those between this edit and the last.
+     */
+    public SourceBuffer relex(SourceBuffer source, int offset, int removed, String inserted) {
+        SourceBuffer edited = source.edit(offset, removed, inserted);
+        int delta = inserted.length() - removed;
+        int oldEnd = offset + removed; // End of the edit in the old source
+        int newEnd = offset + inserted.length(); // and in the new one
+
+        // Last token starting before the edit (binary search, starts are in order)
+        int first = Math.max(find(offset) - 1, 0);
+        if(start(first) < offset)
+            edited.cursor = start(first);
+        else
+            edited.cursor = 0; // Edit comes before the first token
+
+        // Lex into a separate buffer until the new tokens line up with old ones
+        TableLexer lexer = new TableLexer(edited, symbols);
+        TokenBuffer fresh = new TokenBuffer(symbols);
+        Token token = new Token();
+        int resume = size; // First old token kept
+        int candidate = first;
+        while(true) {
+            byte kind = fresh.lexNext(lexer, token);
+            int start = fresh.start(fresh.size - 1);
+            if(start >= newEnd) {
+                while(candidate < size && (start(candidate) < oldEnd || start(candidate) + delta < start))
+                    candidate ++;
+                if(candidate < size && start(candidate) + delta == start && kinds[at(candidate)] == kind) {
+                    fresh.size --; // Same token as the old one, keep the old one
+                    resume = candidate;
+                    break;
+                }
+            }
+            if(kind == EOF)
+                break;
+        }
+        relexed = fresh.size;
+
+        // The replaced tokens give their value slots back for the new ones
+        moveGap(resume);
+        for(int i = first; i < resume; i++)
+            if(kinds[i] != ID && payloads[i] >= 0)
+                freeValue(payloads[i]);
+
+        // Widen the gap over the replaced tokens and put the new ones in it
+        gapLength += resume - first;
+        size -= resume - first;
+        gap = first;
+        reserve(fresh.size);
+        for(int i = 0; i < fresh.size; i++) {
+            kinds[gap] = fresh.kinds[i];
+            starts[gap] = fresh.starts[i];
+            lengths[gap] = fresh.lengths[i];
+            payloads[gap] = (fresh.kinds[i] == ID || fresh.payloads[i] < 0) ? fresh.payloads[i] : addValue(fresh.values[fresh.payloads[i]]);
+            gap ++;
+        }
+        gapLength -= fresh.size;
+        size += fresh.size;
+        shift += delta; // The kept tokens after the gap
+        return edited;
+    }
+
+    // Moves the gap to before token i
+    void moveGap(int i) {
+        if(i < gap) {
+            int n = gap - i;
+            System.arraycopy(kinds, i, kinds, i + gapLength, n);
+            System.arraycopy(lengths, i, lengths, i + gapLength, n);
+            System.arraycopy(payloads, i, payloads, i + gapLength, n);
+            for(int j = i; j < gap; j++)
+                starts[j + gapLength] = starts[j] - shift;
+        } else if(i > gap) {
+            int n = i - gap;
+            System.arraycopy(kinds, gap + gapLength, kinds, gap, n);
+            System.arraycopy(lengths, gap + gapLength, lengths, gap, n);
+            System.arraycopy(payloads, gap + gapLength, payloads, gap, n);
+            for(int j = gap; j < i; j++)
+                starts[j] = starts[j + gapLength] + shift;
+        }
+        gap = i;
+    }
+
+    // Makes the gap hold at least n tokens
+    void reserve(int n) {
+        if(gapLength >= n) return;
+        int capacity = Math.max(kinds.length * 2, size + n);
+        int tail = size - gap;
+        byte[] newKinds = Arrays.copyOf(kinds, capacity);
+        int[] newStarts = Arrays.copyOf(starts, capacity);
+        int[] newLengths = Arrays.copyOf(lengths, capacity);
+        int[] newPayloads = Arrays.copyOf(payloads, capacity);
+        System.arraycopy(kinds, gap + gapLength, newKinds, capacity - tail, tail);
+        System.arraycopy(starts, gap + gapLength, newStarts, capacity - tail, tail);
+        System.arraycopy(lengths, gap + gapLength, newLengths, capacity - tail, tail);
+        System.arraycopy(payloads, gap + gapLength, newPayloads, capacity - tail, tail);
+        kinds = newKinds;
+        starts = newStarts;
+        lengths = newLengths;
+        payloads = newPayloads;
+        gapLength = capacity - size;
+    }
+
+    void add(byte kind, int start, int length, int payload) {
+        int i = size + gapLength; // After the gap
+        if(i == kinds.length) {
+            int capacity = i * 2;
+            kinds = Arrays.copyOf(kinds, capacity);
+            starts = Arrays.copyOf(starts, capacity);
+            lengths = Arrays.copyOf(lengths, capacity);
+            payloads = Arrays.copyOf(payloads, capacity);
+        }
+        kinds[i] = kind;
+        starts[i] = start - shift;
+        lengths[i] = length;
+        payloads[i] = payload;
+        size ++;
+    }
+
+    int addValue(String value) {
+        if(freeCount > 0) {
+            int slot = freeValues[--freeCount];
+            values[slot] = value;
+            return slot;
+        }
+        if(valueCount == values.length)
+            values = Arrays.copyOf(values, valueCount * 2);
+        values[valueCount] = value;
+        return valueCount++;
+    }
+
+    void freeValue(int slot) {
+        values[slot] = null;
+        if(freeCount == freeValues.length)
+            freeValues = Arrays.copyOf(freeValues, freeCount * 2);
+        freeValues[freeCount++] = slot;
+    }
+
+    /**
+     * find()
+     * Returns the index of the first token that starts at or after offset.
+     */
+    int find(int offset) {
+        int low = 0, high = size - 1; // End-of-text if none
+        while(low < high) {
+            int mid = (low + high) >>> 1;
+            if(start(mid) < offset) low = mid + 1;
+            else high = mid;
+        }
+        return low;
+    }
+
+    int at(int i) { return (i < gap) ? i : i + gapLength; } // Array index of token i
+    int start(int i) { return (i < gap) ? starts[i] : starts[i + gapLength] + shift; }
+    int length(int i) { return lengths[at(i)]; }
+    boolean isError(int i) { return kinds[at(i)] == ERROR; }
+    TokenKind kind(int i) { return isError(i) ? null : KINDS[kinds[at(i)]]; }
+    boolean isIdentifier(int i) { return kinds[at(i)] == ID; }
+    String value(int i) {
+        int payload = payloads[at(i)];
+        if(payload < 0) return "";
+        return isIdentifier(i) ? symbols.name(payload) : values[payload];
     }
-    
+
     /**
-     * close()
-     * Closes the scanner object.
+     * load()
+     * Copies token i into the given Token object.
      */
-    public void close() {
-        scanner.close();
+    void load(int i, Token token) {
+        token.setKind(KINDS[kinds[at(i)]]);
+        token.setValue(value(i));
+        token.setSymbol(isIdentifier(i) ? payloads[at(i)] : -1);
+        token.setOffset(start(i));
+    }
+}
+
+/**
+ * class BatchResult
+ * What a batch run keeps of one file: its output, tokens read and whether it passed.
+ */
+class BatchResult {
+    String output;
+    int tokens;
+    boolean passed;
+
+    // Constructor
+    public BatchResult(String output, int tokens, boolean passed) {
+        this.output = output;
+        this.tokens = tokens;
+        this.passed = passed;
     }
 }
 
@@ -335,61 +4269,211 @@ class ParseScanner {
 public class Project2 {
     // Main
     public static void main(String[] args) {
-        for(String source : args) {
-            new Project2().run(source);
+        // "-batch" analyzes the files in parallel, "-run" runs them, everything else is a filename
+        boolean batch = false;
+        boolean runPrograms = false;
+        List<String> sources = new ArrayList<>();
+        for(String arg : args) {
+            if(arg.equals("-batch"))
+                batch = true;
+            else if(arg.equals("-run"))
+                runPrograms = true;
+            else
+                sources.add(arg);
+        }
+        if(batch) {
+            batch(sources, runPrograms);
+            return;
+        }
+
+        ASTArena arena = new ASTArena(); // Reused for every file when astType is Arena
+        OutputSink out = null; // Opened by the first run, shared by the rest
+        for(String source : sources) {
+            Project2 project = new Project2(arena, out);
+            project.runProgram |= runPrograms;
+            project.run(source);
+            out = project.out;
+        }
+        if(out != null) out.close();
+    }
+
+    /**
+     * batch()
+     * Analyzes the files on a pool of one thread per processor.
+     * Each file gets its own Project2 writing to a MemorySink, and each
+     * thread its own ASTArena, so runs share nothing. Outputs are written
+     * in argument order as they complete, followed by a summary.
+     */
+    static void batch(List<String> sources, boolean runPrograms) {
+        long start = System.nanoTime();
+        int threads = Math.max(1, Math.min(sources.size(), Runtime.getRuntime().availableProcessors()));
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        ThreadLocal<ASTArena> arenas = ThreadLocal.withInitial(ASTArena::new);
+
+        List<Future<BatchResult>> results = new ArrayList<>();
+        for(String source : sources) {
+            results.add(executor.submit(() -> {
+                Project2 project = new Project2(arenas.get(), OutputSink.memory());
+                project.runProgram |= runPrograms;
+                project.run(source);
+                return new BatchResult(project.out.toString(), project.tokenCount, !project.hasError);
+            }));
+        }
+        executor.shutdown();
+
+        OutputSink out;
+        try { out = new Project2().openOutput(); }
+        catch(IOException e) { System.out.println("Error: Cannot open output."); executor.shutdownNow(); return; }
+
+        long tokens = 0;
+        int passed = 0, failed = 0;
+        for(int i = 0; i < results.size(); i++) {
+            try {
+                BatchResult result = results.get(i).get();
+                out.print(result.output);
+                tokens += result.tokens;
+                if(result.passed) passed ++; else failed ++;
+            } catch(ExecutionException e) {
+                out.println("Error: \'" + sources.get(i) + "\' stopped with " + e.getCause());
+                failed ++;
+            } catch(InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+            results.set(i, null); // Output is written, let it go
         }
+
+        // Summary
+        double seconds = Math.max(System.nanoTime() - start, 1) / 1e9;
+        out.println("Batch summary: " + sources.size() + " files, " + tokens + " tokens in "
+            + String.format("%.3f", seconds) + " s on " + threads + " threads");
+        out.println("  " + String.format("%.1f", sources.size() / seconds) + " files/sec, "
+            + String.format("%.0f", tokens / seconds) + " tokens/sec");
+        out.println("  " + passed + " passed, " + failed + " failed");
+        out.close();
     }
 
     // Enumeration
     enum AnalyzerType {
         Lexical,
-        Syntax
+        Syntax,
+        LexerCheck
+    }
+    enum LexerType {
+        Direct,
+        Table
+    }
+    enum ASTType {
+        Nodes,
+        Arena
+    }
+    enum RunType {
+        Tree,
+        Bytecode,
+        Jvm
+    }
+    enum OutputType {
+        Stdout,
+        File,
+        Memory,
+        Discard
     }
 
     // Variables
     public String filename;
-    public final String DISP_FORMAT = "%-9s%-9s%-8s";
-    public final String AST_DISP_FORMAT = "%-13s%-8s%-13s%-13s%-13s";
-    public final String EOF = "end-of-text";
-    public ParseScanner scan;
+    public final int[] DISP_WIDTHS = {9, 9, 8}; // Position, Kind and Value columns
+    public OutputSink out; // Where all output goes
+    public SourceBuffer scan;
     public char c;
-    public Position pos;
+    public LineIndex lines;
+    public SymbolTable symbols;
     public Token token;
-    public ArrayList<String> symbolTable;
+    public TableLexer lexer;
+    public TokenBuffer tokens; // Set when the file is lexed up front
+    public int tokenIndex;
+    public ASTBuilder tree; // Where the parser builds the AST
+    public ASTArena arena;
+    public int root = NIL; // AST of the last syntax() or reparse()
+    public int slotCount; // Variable slots the program needs, from the SemanticAnalyzer
+    int declTail; // Last SEQ built by declarations(), where Statements are linked
+    static final int NIL = ASTBuilder.NIL;
     public boolean hasError = false;
+    public int errorCount = 0;
+    boolean panic = false; // Recovering from a syntax error, so errors are not reported
+    public int tokenCount = 0; // Tokens read by next(), not counting comments or skipped characters
 
     // Optional variables for debugging and information (hard-coded)
     public boolean displayLexical = false; // Displays lexical symbols (position, kind, value)
     public boolean displayProc = false; // Display Begin/End procedure visits (for tracing)
     public boolean displayAST = true; // Display full AST after syntax analyzer scan
     public AnalyzerType analyzerType = AnalyzerType.Syntax;
+    public LexerType lexerType = LexerType.Table;
+    public boolean preLex = true; // Lex the whole file before analysis (Table lexer only)
+    public ASTType astType = ASTType.Nodes;
+    public OutputType outputType = OutputType.Stdout;
+    public String outputFile = "output.txt"; // Used when outputType is File
+    public boolean runProgram = false; // Run the program after a successful syntax scan (Nodes AST)
+    public RunType runType = RunType.Bytecode;
+    public boolean optimizeAST = true; // Optimize the AST of a program before running it
 
     // Constructor
     public Project2() {}
+    public Project2(ASTArena arena, OutputSink out) {
+        this.arena = arena;
+        this.out = out;
+    }
 
     /**
      * run()
      * Primary function of the class.
      */
     public void run(String filename) {
+        // Setup output
+        if(out == null) {
+            try { out = openOutput(); }
+            catch(IOException e) { System.out.println("Error: Cannot open \'" + outputFile + "\'."); return; }
+        }
+
         // Setup scanner
-        try { scan = new ParseScanner(new Scanner(new File(filename)));}
-        catch(FileNotFoundException e) { System.out.println("Error: File not found."); return; }
+        try { scan = new SourceBuffer(filename); }
+        catch(IOException e) { out.println("Error: File not found."); out.flush(); hasError = true; return; }
 
         // Create variables
-        createSymbolTable();
-        pos = new Position();
+        lines = scan.lines;
         token = new Token();
+        symbols = new SymbolTable();
+        lexer = new TableLexer(scan, symbols);
+
+        // Lex the whole file up front if selected
+        if(preLex && lexerType == LexerType.Table && analyzerType != AnalyzerType.LexerCheck) {
+            tokens = TokenBuffer.lex(lexer);
+            tokenIndex = 0;
+        }
 
         // Determine which analyzer to run
         switch(analyzerType) {
             case Lexical: lexical(filename); break;
             case Syntax: syntax(filename); break;
-            default: System.out.println("No analyzer selected. Set 'analyzerType' variable");
+            case LexerCheck: lexerCheck(filename); break;
+            default: out.println("No analyzer selected. Set 'analyzerType' variable");
         }
 
         scan.close();
+        out.flush();
     } // End run()
+
+    /**
+     * openOutput()
+     * Creates the sink chosen by 'outputType'.
+     */
+    OutputSink openOutput() throws IOException {
+        switch(outputType) {
+            case File: return OutputSink.file(outputFile);
+            case Memory: return OutputSink.memory();
+            case Discard: return OutputSink.discard();
+            default: return OutputSink.stdout();
+        }
+    }
     
     /**
      * lexical()
@@ -397,521 +4481,691 @@ public class Project2 {
      * Creates 
      */
     public void lexical(String filename) {
-        System.out.println("Starting lexical analysis scan on \'" + filename + "\'...");
+        out.println("Starting lexical analysis scan on \'" + filename + "\'...");
         
         // Output heading for tokens
-        System.out.format(DISP_FORMAT, "Position", "Kind", "Value");
-        System.out.println("");
+        out.column("Position", DISP_WIDTHS[0]);
+        out.column("Kind", DISP_WIDTHS[1]);
+        out.column("Value", DISP_WIDTHS[2]);
+        out.println();
 
         // Main loop
-        while(kind() != EOF) {
+        while(kind() != TokenKind.EOF) {
             // Get next token
             next();
-            if(hasError) break;
-            print(position(), kind(), value());
+            print(offset(), kind(), value());
+        }
+
+        if(!hasError)
+            out.println("Lexical scan completed successfully.\n");
+        endTask();
+    }
+
+    /**
+     * lexerCheck()
+     * Runs the Direct lexer and a second Table lexer side by side
+     * over the file and reports the first token they disagree on.
+     * A lexer that throws is reported as a mismatch too.
+     */
+    public void lexerCheck(String filename) {
+        out.println("Starting lexer check on \'" + filename + "\'...");
+
+        TableLexer table;
+        try { table = new TableLexer(new SourceBuffer(filename), new SymbolTable()); }
+        catch(IOException e) { out.println("Error: File not found."); return; }
+        Token other = new Token();
+        lexerType = LexerType.Direct;
+
+        int count = 0;
+        while(kind() != TokenKind.EOF) {
+            boolean ok;
+            try {
+                next();
+                ok = table.next(other);
+            } catch(RuntimeException e) {
+                genError(position(), "Lexer check stopped by \'" + e + "\' after " + count + " tokens");
+                endTask();
+                break;
+            }
+            count ++;
+
+            if(hasError || !ok) {
+                // Both lexers must reject the same character
+                if(!hasError)
+                    genError(position(), "Table lexer error \'" + table.errorMessage + "\' at " + table.lines.format(table.errorOffset));
+                endTask();
+                if(ok || table.errorOffset != scan.cursor - 1)
+                    out.println("Table lexer did not report the same error.\n");
+                break;
+            }
+            if(kind() != other.getKind() || !value().equals(other.getValue()) || offset() != other.getOffset()) {
+                genError(position(), "Table lexer found \'" + other.getKind() + " " + other.getValue()
+                    + "\' at " + table.lines.format(other.getOffset()) + " for \'" + kind() + " " + value() + "\'");
+                endTask();
+                break;
+            }
         }
 
         if(!hasError)
-            System.out.println("Lexical scan completed successfully.\n");
+            out.println("Lexer check completed successfully, " + count + " tokens match.\n");
     }
 
     public void syntax(String filename) {
-        System.out.println("Starting syntax analysis scan on \'" + filename + "\'...");
+        out.println("Starting syntax analysis scan on \'" + filename + "\'...");
+
+        // Choose where the parser builds the AST
+        AST ast = null;
+        if(astType == ASTType.Arena) {
+            if(arena == null) arena = new ASTArena();
+            tree = arena;
+        } else {
+            ast = new AST();
+            tree = ast;
+        }
 
-        AST ast = new AST();
+        root = parse();
 
-        next();
-        ast = program(EOF);
+        // Resolve variables to their declarations and check types
+        if(!hasError) {
+            SemanticAnalyzer analyzer = new SemanticAnalyzer(out, lines);
+            if(ast != null)
+                analyzer.analyze(ast.get(root));
+            else
+                analyzer.analyze(arena, root);
+            slotCount = analyzer.maxSlots;
+            if(analyzer.errorCount > 0) {
+                errorCount += analyzer.errorCount;
+                hasError = true;
+            }
+        }
+
+        // Warn about variables read before they are assigned
+        if(!hasError) {
+            AssignmentCheck check = new AssignmentCheck(out, lines, slotCount);
+            if(ast != null)
+                check.check(ast.get(root));
+            else
+                check.check(arena, root);
+        }
 
         if(!hasError)
-            System.out.println("Syntax scan completed successfully.\n");
+            out.println("Syntax scan completed successfully.\n");
+        endTask();
 
         // Display AST
         if(!hasError && displayAST) {
-            System.out.println("Abstract Syntax Tree (Using In-Order Traversal):");
-            System.out.format(AST_DISP_FORMAT, "KIND", "POS", "CHILD0", "CHILD1", "CHILD2");
-            System.out.println("");
-            inorderTraversal(ast.root);
+            out.println("Abstract Syntax Tree (Using In-Order Traversal):");
+            ASTPrinter printer = new ASTPrinter(out);
+            printer.header();
+            if(ast != null)
+                printer.print(ast.get(root), lines);
+            else
+                printer.print(arena, root, lines);
         }
 
         // Display true or false per instructions
         if(!hasError)
-            System.out.println("\n\n   TRUE\n\n");
+            out.println("\n\n   TRUE\n\n");
         else
-            System.out.println("\n\n   FALSE\n\n");
+            out.println("\n\n   FALSE\n\n");
+
+        // Run the program if selected
+        if(!hasError && runProgram) {
+            if(ast != null)
+                execute(ast.get(root));
+            else
+                out.println("Programs are run from the Nodes AST, set 'astType' to Nodes.\n");
+        }
     }
     
     /**
-     * inorderTraversal()
-     * Traverses the AST beginning at specified node (root for entire AST)
-     * and displays the elements by in-order traversal.
+     * execute()
+     * Runs the analyzed program: it is walked by the Interpreter, compiled
+     * for the VM or compiled to a JVM class, per 'runType'. With 'optimizeAST'
+     * the Optimizer rewrites it first.
      */
-    void inorderTraversal(ASTNode node) {
-        if(node == null) return;
+    void execute(ASTNode root) {
+        out.println("Running program...");
+        Interpreter interpreter = new Interpreter(out, lines, slotCount);
+        interpreter.prepare(root);
+        if(optimizeAST) {
+            root = Optimizer.standard(slotCount).body(root);
+            root = DeadStores.remove(root, slotCount);
+        }
+        if(runType == RunType.Tree)
+            interpreter.run(root);
+        else if(runType == RunType.Jvm)
+            new ClassCompiler(out, lines).run(root, slotCount); // Falls back to the VM
+        else
+            new VM(out, lines).run(Bytecode.compile(root, slotCount));
+    }
 
-        // Travel child0
-        if(node.child0 != null)
-            inorderTraversal(node.child0);
-        
-        // Print kind of node
-        System.out.format(AST_DISP_FORMAT,
-                            node.kind,
-                            node.pos,
-                            ((node.child0 != null) ? node.child0.kind : "NIL"),
-                            ((node.child1 != null) ? node.child1.kind : "NIL"),
-                            ((node.child2 != null) ? node.child2.kind : "NIL"));
-        System.out.println("");
-        //System.out.println(
-                            // "Node: Kind: " +
-                            // node.kind +
-                            // " Pos: " +
-                            // node.pos +
-                            // " Child0: " + 
-                            // ((node.child0 != null) ? node.child0.kind : "NIL") +
-                            // " Child1: " +
-                            // ((node.child1 != null) ? node.child1.kind : "NIL") +
-                            // " Child2: " +
-                            // ((node.child2 != null) ? node.child2.kind : "NIL"));
-
-        // Travel child1
-        if(node.child1 != null)
-            inorderTraversal(node.child1);
-
-        // Travel child2
-        if(node.child2 != null)
-            inorderTraversal(node.child2);
+    /**
+     * parse()
+     * Parses the file from its first token into a new AST and returns the root.
+     */
+    int parse() {
+        tokenIndex = 0;
+        hasError = false;
+        errorCount = 0;
+        panic = false;
+        if(tree == arena)
+            arena.reset(symbols);
+
+        next();
+        return program(FOLLOW_PROGRAM);
     }
-    
+
+    /**
+     * reparse()
+     * Updates the AST of the last syntax() for an edit that replaces the
+     * removed characters at offset with the inserted text. Needs 'preLex'
+     * and the Arena 'astType'.
+     * 
+     * The tokens are relexed, then only the innermost statement around the
+     * edit is parsed again and put in the place of the old one; every other
+     * subtree is kept. It must parse without errors and stop at the same
+     * (unedited) token as before, otherwise the enclosing if or while is
+     * tried, and last the whole file. Returns true if a statement was reused.
+     * The first edit indexes the arena, after that the work depends on the
+     * statement parsed again rather than on the size of the file.
+     */
+    public boolean reparse(int offset, int removed, String inserted) {
+        if(tokens == null || tree != arena)
+            throw new IllegalStateException("reparse() needs preLex and the Arena AST");
+
+        int end = offset + removed;
+        scan = tokens.relex(scan, offset, removed, inserted);
+        lines = scan.lines;
+
+        // A tree with errors is not reused
+        if(hasError || root == NIL) {
+            root = parse();
+            return false;
+        }
+
+        if(!arena.indexed)
+            arena.index(root);
+        int[] candidates = arena.enclosing(offset, end);
+        int[] starts = new int[candidates.length]; // Taken before shift() moves a statement that text was inserted in front of
+        for(int i = 0; i < candidates.length; i++)
+            starts[i] = arena.spanStart(candidates[i]);
+        arena.shift(offset, end, inserted.length() - removed, candidates);
+
+        OutputSink shown = out;
+        out = OutputSink.discard(); // Errors of a failed attempt are not reported
+        int mark = arena.size;
+        for(int i = 0; i < candidates.length; i++) {
+            // The token before the statement must end before it, or the edit changed it
+            int old = candidates[i];
+            int start = starts[i];
+            int first = tokens.find(start);
+            if(first > 0 && tokens.start(first - 1) + tokens.length(first - 1) > start)
+                continue;
+
+            tokenIndex = first;
+            next();
+            int node = statement(FOLLOW_STATEMENT);
+            if(!hasError && node != NIL && offset() == arena.spanNext(old)) {
+                out = shown;
+                root = arena.replace(root, old, node);
+                return true;
+            }
+
+            hasError = false;
+            errorCount = 0;
+            panic = false;
+            arena.size = mark; // Drop the nodes of the attempt
+        }
+
+        out = shown;
+        root = parse();
+        return false;
+    }
+
 // -----------------------------------------------------------------------------------------------
 // --------------------------- Syntax Analysis Scan Functions ------------------------------------
 // -----------------------------------------------------------------------------------------------
 // ------------------------------------ Project 2 Code -------------------------------------------
 // -----------------------------------------------------------------------------------------------
 
-    void match(String... symbols) {
-        // Check if current symbol is in list of required symbols
-        for(String s : symbols) {
-            if(kind().equals(s)) {
-                print(position(), kind(), value());
-                next();
-                return; // Found, so return. Testing no longer needed.
-            }
+    // Binding power of each operator token (0 if not an operator) and the node kind it builds
+    static final int RELATIONAL = 1, ADDITIVE = 2, MULTIPLICATIVE = 3;
+    static final int[] BINDING_POWER = new int[TokenKind.values().length];
+    static final int[] OPERATOR_NODE = new int[TokenKind.values().length];
+
+    static {
+        operator(TokenKind.LT, RELATIONAL, AST.OP_LT);
+        operator(TokenKind.EQLT, RELATIONAL, AST.OP_EQLT);
+        operator(TokenKind.EQ, RELATIONAL, AST.OP_EQ);
+        operator(TokenKind.NOTEQ, RELATIONAL, AST.OP_NOTEQ);
+        operator(TokenKind.GTEQ, RELATIONAL, AST.OP_GTEQ);
+        operator(TokenKind.GT, RELATIONAL, AST.OP_GT);
+        operator(TokenKind.PLUS, ADDITIVE, AST.OP_PLUS);
+        operator(TokenKind.MINUS, ADDITIVE, AST.OP_MINUS);
+        operator(TokenKind.OR, ADDITIVE, AST.OP_OR);
+        operator(TokenKind.MULT, MULTIPLICATIVE, AST.OP_MULT);
+        operator(TokenKind.DIV, MULTIPLICATIVE, AST.OP_DIV);
+        operator(TokenKind.AND, MULTIPLICATIVE, AST.OP_AND);
+    }
+
+    static void operator(TokenKind kind, int power, int node) {
+        BINDING_POWER[kind.ordinal()] = power;
+        OPERATOR_NODE[kind.ordinal()] = node;
+    }
+
+    // FIRST sets of the grammar in the procedure comments below, as bitmasks of TokenKind.bit
+    static final long FIRST_LITERAL = TokenKind.setOf(TokenKind.TRUE, TokenKind.FALSE, TokenKind.NUM);
+    static final long FIRST_DECLARATION = TokenKind.setOf(TokenKind.BOOL, TokenKind.INT);
+    static final long STATEMENT_KEYWORDS = TokenKind.setOf(TokenKind.IF, TokenKind.WHILE, TokenKind.PRINT);
+    static final long FIRST_STATEMENT = STATEMENT_KEYWORDS | TokenKind.ID.bit;
+
+    // FOLLOW sets; a Body's follow depends on what it is in, so it is passed down
+    static final long FOLLOW_PROGRAM = TokenKind.EOF.bit;
+    static final long FOLLOW_STATEMENT = TokenKind.SEMICOLON.bit; // Plus the Body's follow
+
+    // Where recovery inside a Declaration resumes, and what closes "(" Expression
+    static final long DECLARATION_SYNC = TokenKind.SEMICOLON.bit | FIRST_DECLARATION | STATEMENT_KEYWORDS;
+    static final long CLOSE_PAREN = TokenKind.setOf(TokenKind.RPAREN, TokenKind.PLUS, TokenKind.MINUS, TokenKind.OR,
+                                                    TokenKind.MULT, TokenKind.DIV, TokenKind.AND);
+
+    /**
+     * match()
+     * Consumes the current token if it is one of the symbols, otherwise reports
+     * an error (unless already recovering from one) and leaves the token.
+     * Returns whether it matched. A match ends error recovery.
+     */
+    boolean match(long symbols) {
+        // Check if current symbol is in the set of required symbols
+        if(csymBelongsTo(symbols)) {
+            print(offset(), kind(), value());
+            panic = false;
+            next();
+            return true;
         }
 
-        // Otherwise, generate an error
-        if(!hasError) {
-            genError(position(), "Expected " + getElements(symbols) + ", but found \'" + kind() + "\'");
-            hasError = true;
+        // Otherwise, generate an error (the set is only rendered if it is reported)
+        if(!panic)
+            syntaxError("Expected " + getElements(symbols) + ", but found \'" + kind() + "\'");
+        return false;
+    }
+    boolean match(TokenKind symbol) {
+        return match(symbol.bit);
+    }
+
+    /**
+     * skipTo()
+     * Panic mode: skips tokens until one belongs to the set, or end-of-text.
+     */
+    void skipTo(long set) {
+        set |= TokenKind.EOF.bit;
+        while(!csymBelongsTo(set))
+            next();
+    }
+
+    /**
+     * resync()
+     * Called after a Body that must end with one of the follow symbols.
+     * Any other token is reported as match(closer) would report it, then
+     * tokens are skipped to a ";" or a statement keyword, and the rest of
+     * the Statements are parsed, so their errors are found too.
+     */
+    void resync(TokenKind closer, long follow) {
+        while(!csymBelongsTo(follow | TokenKind.EOF.bit)) {
+            match(closer);
+            if(!csymBelongsTo(FIRST_STATEMENT)) // Likely a missing ";" when it starts a statement
+                skipTo(follow | STATEMENT_KEYWORDS | TokenKind.SEMICOLON.bit);
+            if(csymBelongsTo(TokenKind.SEMICOLON.bit)) {
+                panic = false;
+                next();
+            }
+            if(csymBelongsTo(FIRST_STATEMENT))
+                statements(follow);
         }
     }
-    AST program(String... follow) { // "program" Identifier ":" Body "end"
-        if(hasError) return null;
+
+    int program(long follow) { // "program" Identifier ":" Body "end"
         outputProc("Begin: Program");
-        AST ast = new AST();
-        try {
+        int root = NIL;
 
-            match("program");
-            match("ID");
-            match(":");
-            ast = body("end");
-            match("end");
+        match(TokenKind.PROGRAM);
+        match(TokenKind.ID);
+        match(TokenKind.COLON);
+        root = body(TokenKind.END.bit);
+        resync(TokenKind.END, TokenKind.END.bit);
+        match(TokenKind.END);
 
-        } catch(Exception e) {} // Exception will be null return of sub-ast due to syntax error
         outputProc("End: Program");
-        return ast;
+        return root;
     }
-    AST body(String... follow) { // [ Declarations ] Statements
-        if(hasError) return null;
+    int body(long follow) { // [ Declarations ] Statements
         outputProc("Begin: Body");
-        AST ast = new AST();
-        try {
+        int root = NIL;
 
-            if(csymBelongsTo("bool", "int")) {
-                ast = declarations();
-            }
+        int tail = NIL;
+        if(csymBelongsTo(FIRST_DECLARATION)) {
+            root = declarations(follow | FIRST_STATEMENT);
+            tail = declTail;
+        }
 
-            ast.add(statements());
+        int stmts = statements(follow);
+        if(root == NIL)
+            root = stmts;
+        else
+            tree.setChild(tail, 1, stmts); // Statements follow the last declaration
 
-        } catch(Exception e) {} // Exception will be null return of sub-ast due to syntax error
         outputProc("End: Body");
-        return ast;
+        return root;
     }
-    AST declarations(String... follow) { // Declaration { Declaration }
-        if(hasError) return null;
+    int declarations(long follow) { // Declaration { Declaration }
         outputProc("Begin: Declarations");
-        AST ast = new AST();
-        try {
+        int root = NIL;
 
-            ast = declaration();
+        root = declaration(follow);
+        declTail = root;
 
-            while(csymBelongsTo("bool", "int")) {
-                ast.add(declaration());
-            }
+        while(csymBelongsTo(FIRST_DECLARATION)) {
+            int seqNode = declaration(follow);
+            tree.setChild(declTail, 1, seqNode);
+            declTail = seqNode;
+        }
 
-        } catch(Exception e) {} // Exception will be null return of sub-ast due to syntax error
         outputProc("End: Declarations");
-        return ast;
+        return root;
     }
-    AST declaration(String... follow) { // ( "bool" | "int" ) Identifier ";"
-        if(hasError) return null;
+    int declaration(long follow) { // ( "bool" | "int" ) Identifier ";"
         outputProc("Begin: Declaration");
-        AST ast = new AST();
-        try {
+        int root = NIL;
 
-            print(position(), kind(), value());
+        print(offset(), kind(), value());
 
-            ASTNode declNode = new ASTNode("DECL", position());
-            ASTNode litNode;
+        int declNode = tree.node(AST.DECL, offset());
+        int litNode;
 
-            if(kind().equals("bool"))
-                litNode = new ASTNode("bool", position());
-            else if(kind().equals("int"))
-                litNode = new ASTNode("int", position());
-            else
-                litNode = null; // Should not happen
-            
-            next();
+        if(kind() == TokenKind.BOOL)
+            litNode = tree.leaf("bool", offset(), -1);
+        else if(kind() == TokenKind.INT)
+            litNode = tree.leaf("int", offset(), -1);
+        else
+            litNode = NIL; // Should not happen
+        
+        next();
 
-            ASTNode idNode = new ASTNode(value(), position());
-            match("ID");
-            
-            ASTNode seqNode = new ASTNode("SEQ", position());
-            match(";");
-            
-            declNode.child0 = idNode;
-            declNode.child1 = litNode;
-            seqNode.child0 = declNode;
-            ast.add(seqNode);
+        int idNode = tree.leaf(value(), offset(), symbol());
+        match(TokenKind.ID);
+        
+        int seqNode = tree.node(AST.SEQ, offset());
+        if(!match(TokenKind.SEMICOLON)) {
+            // Skip the rest of the declaration, through its ";" if there is one
+            skipTo((follow & ~TokenKind.ID.bit) | DECLARATION_SYNC);
+            if(csymBelongsTo(TokenKind.SEMICOLON.bit) && match(TokenKind.SEMICOLON))
+                panic = false;
+        }
+        
+        tree.setChild(declNode, 0, idNode);
+        tree.setChild(declNode, 1, litNode);
+        tree.setChild(seqNode, 0, declNode);
+        root = seqNode;
 
-        } catch(Exception e) {} // Exception will be null return of sub-ast due to syntax error
         outputProc("End: Declaration");
-        return ast;
+        return root;
     }
-    AST statements(String... follow) { // Statement { ";" Statement }
-        if(hasError) return null;
+    int statements(long follow) { // Statement { ";" Statement }
         outputProc("Begin: Statements");
-        AST ast = new AST();
-        try {
+        int root = NIL;
 
-            ASTNode seqNode = null;
-            ast = statement();
+        root = statement(follow | FOLLOW_STATEMENT);
 
-            while(csymBelongsTo(";")) {
-                print(position(), kind(), value());
+        while(csymBelongsTo(TokenKind.SEMICOLON.bit)) {
+            print(offset(), kind(), value());
 
-                seqNode = new ASTNode("SEQ", position());
-                seqNode.child0 = ast.root;
-                ast.root = seqNode;
-                ast.currentNode = seqNode;
+            int seqNode = tree.node(AST.SEQ, offset());
+            tree.setChild(seqNode, 0, root);
+            root = seqNode;
 
-                next();
-                ast.add(statement());
-            }
+            panic = false; // A ";" is a safe place to resume reporting
+            next();
+            tree.setChild(seqNode, 1, statement(follow | FOLLOW_STATEMENT));
+        }
 
-        } catch(Exception e) {} // Exception will be null return of sub-ast due to syntax error
         outputProc("End: Statements");
-        return ast;
+        return root;
     }
-    AST statement(String... follow) { // AssignmentStatement | ConditionalStatement | IterativeStatement | PrintStatement
-        if(hasError) return null;
+    int statement(long follow) { // AssignmentStatement | ConditionalStatement | IterativeStatement | PrintStatement
         outputProc("Begin: Statement");
-        AST ast = new AST();
-        try {
-            if(csymBelongsTo("ID")) {
-                ast = assignmentStatement();
-            }
-            else if(csymBelongsTo("if")) {
-                ast = conditionalStatement();
-            }
-            else if(csymBelongsTo("while")) {
-                ast = iterativeStatement();
-            }
-            else if(csymBelongsTo("print")) {
-                ast = printStatement();
+        int root = NIL;
+        int start = offset();
+
+        if(csymBelongsTo(TokenKind.ID.bit)) {
+            root = assignmentStatement(follow);
+        }
+        else if(csymBelongsTo(TokenKind.IF.bit)) {
+            root = conditionalStatement(follow);
+        }
+        else if(csymBelongsTo(TokenKind.WHILE.bit)) {
+            root = iterativeStatement(follow);
+        }
+        else if(csymBelongsTo(TokenKind.PRINT.bit)) {
+            root = printStatement(follow);
+        }
+        else {
+            syntaxError("Expected {ID, if, while, print}, but found \'" + kind() + "\'");
+
+            // A misplaced declaration is skipped whole, anything else up to
+            // a statement keyword (parsed here) or to what follows a statement
+            if(csymBelongsTo(FIRST_DECLARATION)) {
+                declaration(follow);
+                if(csymBelongsTo(FIRST_STATEMENT))
+                    root = statement(follow);
+            } else {
+                skipTo(follow | STATEMENT_KEYWORDS);
+                if(csymBelongsTo(STATEMENT_KEYWORDS))
+                    root = statement(follow);
             }
-            else
-                genError(position(), "Expected {ID, if, while, print}, but found \'" + kind() + "\'");
-        
-            } catch(Exception e) {} // Exception will be null return of sub-ast due to syntax error
+        }
+
+        if(root != NIL)
+            tree.span(root, start, offset()); // Up to the token after the statement
+
         outputProc("End: Statement");
-        return ast;
+        return root;
     }
-    AST assignmentStatement(String... follow) { // Identifier ":=" Expression
-        if(hasError) return null;
+    int assignmentStatement(long follow) { // Identifier ":=" Expression
         outputProc("Begin: AssignmentStatement");
-        AST ast = new AST();
-        try {
+        int root = NIL;
 
-            ASTNode varNode = new ASTNode("VARIABLE", position());
-            ASTNode idNode = new ASTNode(value(), position());
-            varNode.child0 = idNode;
+        int varNode = tree.node(AST.VARIABLE, offset());
+        int idNode = tree.leaf(value(), offset(), symbol());
+        tree.setChild(varNode, 0, idNode);
 
-            match("ID");
-            ASTNode asmtNode = new ASTNode("ASSIGNMENT", position());
-            asmtNode.child0 = varNode;
-            match(":=");
+        match(TokenKind.ID);
+        int asmtNode = tree.node(AST.ASSIGNMENT, offset());
+        tree.setChild(asmtNode, 0, varNode);
+        match(TokenKind.ASSIGN);
 
-            asmtNode.child1 = expression().root;
-            ast.root = asmtNode;
-            ast.currentNode = asmtNode;
+        tree.setChild(asmtNode, 1, expression(follow));
+        root = asmtNode;
 
-        } catch(Exception e) {} // Exception will be null return of sub-ast due to syntax error
         outputProc("End: AssignmentStatement");
-        return ast;
+        return root;
     }
-    AST conditionalStatement(String... follow) { // "if" Expression "then" Body [ "else" Body ] "fi"
-        if(hasError) return null;
+    int conditionalStatement(long follow) { // "if" Expression "then" Body [ "else" Body ] "fi"
         outputProc("Begin: ConditionalStatement");
-        AST ast = new AST();
-        try {
-
-            ASTNode ifNode = new ASTNode("IF", position());
-            match("if");
-            ifNode.child0 = expression().root; // Condition
-
-            match("then");
-            ifNode.child1 = body().root; // True branch
-
-            if(csymBelongsTo("else")) {
-                match("else");
-                ifNode.child2 = body().root; // False branch
-            }
+        int root = NIL;
+
+        int ifNode = tree.node(AST.IF, offset());
+        match(TokenKind.IF);
+        tree.setChild(ifNode, 0, expression(TokenKind.THEN.bit)); // Condition
+
+        match(TokenKind.THEN);
+        long thenFollow = follow | TokenKind.ELSE.bit | TokenKind.FI.bit;
+        tree.setChild(ifNode, 1, body(thenFollow)); // True branch
+        resync(TokenKind.FI, thenFollow);
+
+        if(csymBelongsTo(TokenKind.ELSE.bit)) {
+            match(TokenKind.ELSE);
+            long elseFollow = follow | TokenKind.FI.bit;
+            tree.setChild(ifNode, 2, body(elseFollow)); // False branch
+            resync(TokenKind.FI, elseFollow);
+        }
 
-            match("fi");
-            ast.root = ifNode;
-            ast.currentNode = ifNode;
+        match(TokenKind.FI);
+        root = ifNode;
 
-        } catch(Exception e) {} // Exception will be null return of sub-ast due to syntax error
         outputProc("End: ConditionalStatement");
-        return ast;
+        return root;
     }
-    AST iterativeStatement(String... follow) { // "while" Expression "do" Body "od"
-        if(hasError) return null;
+    int iterativeStatement(long follow) { // "while" Expression "do" Body "od"
         outputProc("Begin: IterativeStatement");
-        AST ast = new AST();
-        try {
+        int root = NIL;
 
-            ASTNode whileNode = new ASTNode("WHILE", position());
+        int whileNode = tree.node(AST.WHILE, offset());
 
-            match("while");
-            whileNode.child0 = expression("do").root; // Condition
-            match("do");
+        match(TokenKind.WHILE);
+        tree.setChild(whileNode, 0, expression(TokenKind.DO.bit)); // Condition
+        match(TokenKind.DO);
 
-            whileNode.child1 = body("od").root; // True branch (iteration)
-            match("od");
+        long bodyFollow = follow | TokenKind.OD.bit;
+        tree.setChild(whileNode, 1, body(bodyFollow)); // True branch (iteration)
+        resync(TokenKind.OD, bodyFollow);
+        match(TokenKind.OD);
+
+        root = whileNode;
 
-            ast.root = whileNode;
-            ast.currentNode = whileNode;
-        
-        } catch(Exception e) {} // Exception will be null return of sub-ast due to syntax error
         outputProc("End: IterativeStatement");
-        return ast;
+        return root;
     }
-    AST printStatement(String... follow) { // "print" Expression
-        if(hasError) return null;
+    int printStatement(long follow) { // "print" Expression
         outputProc("Begin: PrintStatement");
-        AST ast = new AST();
-        try {
+        int root = NIL;
 
-            ASTNode printNode = new ASTNode("PRINT", position());
-            match("print");
-            printNode.child0 = expression().root;
-            ast.root = printNode;
-            ast.currentNode = printNode;
+        int printNode = tree.node(AST.PRINT, offset());
+        match(TokenKind.PRINT);
+        tree.setChild(printNode, 0, expression(follow));
+        root = printNode;
 
-        } catch(Exception e) {} // Exception will be null return of sub-ast due to syntax error
         outputProc("End: PrintStatement");
-        return ast;
+        return root;
     }
-    AST expression(String... follow) { // SimpleExpression [ RelationalOperator SimpleExpression ]
-        if(hasError) return null;
+    int expression(long follow) { // SimpleExpression [ RelationalOperator SimpleExpression ]
         outputProc("Begin: Expression");
-        AST ast = new AST();
-        try {
-
-            ASTNode opNode = null;
-            AST tempSimpExpr = simpleExpression();
-
-            if(csymBelongsTo("<", "=<", "=", "!=", ">=", ">")) {
-                print(position(), kind(), value());
-                switch(kind()) {
-                    case "<": opNode = new ASTNode("OP_LT", position()); break;
-                    case "=<": opNode = new ASTNode("OP_EQLT", position()); break;
-                    case "=": opNode = new ASTNode("OP_EQ", position()); break;
-                    case "!=": opNode = new ASTNode("OP_NOTEQ", position()); break;
-                    case ">=": opNode = new ASTNode("OP_GTEQ", position()); break;
-                    case ">": opNode = new ASTNode("OP_GT", position()); break;
-                }
-                next();
+        int root = NIL;
 
-                opNode.child0 = tempSimpExpr.root;
-                opNode.child1 = simpleExpression().root;
-                ast.root = opNode;
-                ast.currentNode = opNode;
-            }
-            if(opNode == null) {
-                ast = tempSimpExpr;
-            }
+        root = binaryExpression(0, follow);
 
-        } catch(Exception e) {} // Exception will be null return of sub-ast due to syntax error
         outputProc("End: Expression");
-        return ast;
-    }
-    AST simpleExpression(String... follow) { // Term { AdditiveOperator Term }
-        if(hasError) return null;
-        outputProc("Begin: SimpleExpression");
-        AST ast = new AST();
-        try {
-
-            ASTNode addNode = null;
-            AST tempTermAST = term();
-
-            while(csymBelongsTo("+", "-", "or")) {
-                print(position(), kind(), value());
-
-                switch(kind()) {
-                    case "+": addNode = new ASTNode("OP_PLUS", position()); break;
-                    case "-": addNode = new ASTNode("OP_MINUS", position()); break;
-                    case "or": addNode = new ASTNode("OP_OR", position()); break;
-                    default: addNode = null;
-                }
-
-                addNode.child0 = tempTermAST.root;
-                next();
-
-                addNode.child1 = term().root;
-                ast.root = addNode;
-                ast.currentNode = addNode;
-            }
-            if(addNode == null) {
-                ast = tempTermAST;
-            }
-
-        } catch(Exception e) {} // Exception will be null return of sub-ast due to syntax error
-        outputProc("End: SimpleExpression");
-        return ast;
+        return root;
     }
-    AST term(String... follow) { // Factor { MultiplicativeOperator Factor }
-        if(hasError) return null;
-        outputProc("Begin: Term");
-        AST ast = new AST();
-        try {
-
-            ASTNode mulNode = null;
-            AST tempFactor = factor();
 
-            while(csymBelongsTo("*", "/", "and")) {
-                print(position(), kind(), value());
+    /**
+     * binaryExpression()
+     * Parses Factors joined by operators that bind tighter than minPower,
+     * in one loop over the BINDING_POWER table (precedence climbing) in place
+     * of the SimpleExpression and Term levels. Additive and multiplicative
+     * operators group to the left, and one relational operator is allowed.
+     */
+    int binaryExpression(int minPower, long follow) {
+        int left = factor(follow);
+        boolean relational = false;
 
-                switch(kind()) {
-                    case "*": mulNode = new ASTNode("OP_MULT", position()); break;
-                    case "/": mulNode = new ASTNode("OP_DIV", position()); break;
-                    case "and": mulNode = new ASTNode("OP_AND", position()); break;
-                    default: mulNode = null;
-                }
-                mulNode.child0 = tempFactor.root;
-                next();
+        while(true) {
+            int power = BINDING_POWER[kind().ordinal()];
+            if(power <= minPower || (power == RELATIONAL && relational))
+                break;
+            print(offset(), kind(), value());
 
-                mulNode.child1 = factor().root;
-                ast.root = mulNode;
-                ast.currentNode = mulNode;
-            }
-            if(mulNode == null) {
-                ast = tempFactor;
-            }
+            int opNode = tree.node(OPERATOR_NODE[kind().ordinal()], offset());
+            next();
 
-        } catch(Exception e) {} // Exception will be null return of sub-ast due to syntax error
-        outputProc("End: Term");
-        return ast;
+            tree.setChild(opNode, 0, left);
+            tree.setChild(opNode, 1, binaryExpression(power, follow));
+            left = opNode;
+            relational = (power == RELATIONAL);
+        }
+        return left;
     }
-    AST factor(String... follow) { // [ UnaryOperator ] ( Literal | Identifier | "(" Expression ")" )
-        if(hasError) return null;
+    int factor(long follow) { // [ UnaryOperator ] ( Literal | Identifier | "(" Expression ")" )
         outputProc("Begin: Factor");
-        AST ast = new AST();
-        try {
-
-            ASTNode notNode = null;
-            ASTNode varNode = null;
-            ASTNode idNode = null;
-            if(csymBelongsTo("-", "not")) {
-                print(position(), kind(), value());
-
-                notNode = new ASTNode("OP_NOT", position());
-                ast.root = notNode;
-                ast.currentNode = notNode;
-                next();
+        int root = NIL;
+
+        int notNode = NIL;
+        int varNode = NIL;
+        int idNode = NIL;
+        if(csymBelongsTo(TokenKind.MINUS.bit | TokenKind.NOT.bit)) {
+            print(offset(), kind(), value());
+
+            notNode = tree.node(AST.OP_NOT, offset());
+            if(kind() == TokenKind.NOT)
+                tree.setNot(notNode);
+            root = notNode;
+            next();
+        }
+        if(csymBelongsTo(FIRST_LITERAL)) {
+            if(notNode == NIL)
+                root = literal(follow);
+            else
+                tree.setChild(notNode, 0, literal(follow));
+        } else if(csymBelongsTo(TokenKind.ID.bit)) {
+            print(offset(), kind(), value());
+
+            varNode = tree.node(AST.VARIABLE, offset());
+            idNode = tree.leaf(value(), offset(), symbol());
+            tree.setChild(varNode, 0, idNode);
+
+            if(notNode == NIL) { // NOT does not exist
+                root = varNode;
+            } else { // NOT exists, so attach as child
+                tree.setChild(notNode, 0, varNode);
             }
-            if(csymBelongsTo("true", "false", "NUM")) {
-                if(notNode == null)
-                    ast = literal();
-                else
-                    notNode.child0 = literal().root;
-            } else if(csymBelongsTo("ID")) {
-                print(position(), kind(), value());
-
-                varNode = new ASTNode("VARIABLE", position());
-                idNode = new ASTNode(value(), position());
-                varNode.child0 = idNode;
-
-                if(notNode == null) { // NOT does not exist
-                    ast.root = varNode;
-                    ast.currentNode = varNode;
-                } else { // NOT exists, so attach as child
-                    notNode.child0 = varNode;
-                }
-                next();
-            } else if(csymBelongsTo("(")) {
-                print(position(), kind(), value());
+            next();
+        } else if(csymBelongsTo(TokenKind.LPAREN.bit)) {
+            print(offset(), kind(), value());
 
-                next();
-                if(ast.root == null) { // NOT does not exist
-                    ast = expression();
-                } else { // NOT exists, so attach as child
-                    notNode.child0 = expression().root;
-                }
+            next();
+            if(root == NIL) { // NOT does not exist
+                root = expression(follow | CLOSE_PAREN);
+            } else { // NOT exists, so attach as child
+                tree.setChild(notNode, 0, expression(follow | CLOSE_PAREN));
+            }
 
-                match(")", "+", "-", "or", "*", "/", "and");
-            } else
-                genError(position(), "Expected { true, false, NUM, ID, ( , -, not }, but found \'" + kind() + "\'");
+            match(CLOSE_PAREN);
+        } else
+            syntaxError("Expected { true, false, NUM, ID, ( , -, not }, but found \'" + kind() + "\'");
 
-        } catch(Exception e) {} // Exception will be null return of sub-ast due to syntax error
         outputProc("End: Factor");
-        return ast;
+        return root;
     }
-    AST literal(String... follow) { // BooleanLiteral | IntegerLiteral
-        if(hasError) return null;
+    int literal(long follow) { // BooleanLiteral | IntegerLiteral
         outputProc("Begin: Literal");
-        AST ast = new AST();
-        try {
+        int root = NIL;
 
-            ASTNode litNode = null;
-            ASTNode valNode = null;
+        int litNode = NIL;
+        int valNode = NIL;
 
-            if(csymBelongsTo("true", "false")) {
-                litNode = new ASTNode("BOOL_LITERAL", position());
-                valNode = new ASTNode(kind(), position());
-            }
-            else if(csymBelongsTo("NUM")) {
-                litNode = new ASTNode("INT_LITERAL", position());
-                valNode = new ASTNode(value(), position());
-            }
+        if(csymBelongsTo(TokenKind.TRUE.bit | TokenKind.FALSE.bit)) {
+            litNode = tree.node(AST.BOOL_LITERAL, offset());
+            valNode = tree.leaf(kind().toString(), offset(), -1);
+        }
+        else if(csymBelongsTo(TokenKind.NUM.bit)) {
+            litNode = tree.node(AST.INT_LITERAL, offset());
+            valNode = tree.leaf(value(), offset(), -1);
+        }
 
-            litNode.child0 = valNode;
-            ast.root = litNode;
-            ast.currentNode = litNode;
-            match("true", "false", "NUM");
+        if(litNode != NIL)
+            tree.setChild(litNode, 0, valNode);
+        root = litNode;
+        match(FIRST_LITERAL);
 
-        } catch(Exception e) {} // Exception will be null return of sub-ast due to syntax error
         outputProc("End: Literal");
-        return ast;
+        return root;
     }
     // void relationalOperator() { } // "<" | "=<" | "=" | "!=" | ">=" | ">"         NOT NEEDED
     // void additiveOperator() { } // "+" | "-" | "or"                               NOT NEEDED
     // void multiplicativeOperator() { } // "*" | "/" | "and"                        NOT NEEDED
     // void unaryOperator() { } // "-" | "not"                                       NOT NEEDED
-    // void booleanLiteral(String... follow) { } // "false" | "true"                 NOT NEEDED
-    // void integerLiteral(String... follow) { } // "NUM"                            NOT NEEDED
-    // void identifier(String... follow) { } // "ID"                                 NOT NEEDED
+    // void booleanLiteral(TokenKind... follow) { } // "false" | "true"                 NOT NEEDED
+    // void integerLiteral(TokenKind... follow) { } // "NUM"                            NOT NEEDED
+    // void identifier(TokenKind... follow) { } // "ID"                                 NOT NEEDED
     // void digit() { } //                                                           NOT NEEDED
     // void letter() { } //                                                          NOT NEEDED
 
@@ -930,132 +5184,158 @@ public class Project2 {
      * information in a Token object.
      */
     void next() {
-        // If no more characters to read, generate EOF token and return
-        if(!scan.hasNext()) {
-            token.setKind(EOF);
-            token.setValue("");
-            token.setPosition(pos.line, pos.letter + 1);
-            return;
+        // A character that is not a token is reported and skipped,
+        // except when checking lexers, which stops at the first one
+        while(!scanToken() && analyzerType != AnalyzerType.LexerCheck) {}
+        tokenCount ++;
+    }
+
+    /**
+     * scanToken()
+     * Scans the next token into the Token object.
+     * Returns false after reporting a character that is not a token.
+     */
+    boolean scanToken() {
+        // Pre-lexed, so read the next token from the buffer (end-of-text repeats)
+        if(tokens != null) {
+            int i = tokenIndex;
+            if(i < tokens.size - 1)
+                tokenIndex ++;
+            if(tokens.isError(i)) {
+                genError(lines.format(tokens.start(i)), tokens.value(i));
+                return false;
+            }
+            tokens.load(i, token);
+            return true;
+        }
+
+        // Table lexer reports errors instead of printing them
+        if(lexerType == LexerType.Table) {
+            if(lexer.next(token))
+                return true;
+            genError(lines.format(lexer.errorOffset), lexer.errorMessage);
+            return false;
         }
 
+        token.setSymbol(-1); // Set again below if the token is an identifier
+        boolean ok = true;
+
         // Remove any whtiespace before reading token
         remWS();
 
+        // If no more characters to read, generate EOF token and return
+        if(!scan.hasNext()) {
+            token.setKind(TokenKind.EOF);
+            token.setValue("");
+            token.setOffset(scan.cursor);
+            return true;
+        }
+
         // Scan next character
         c = scan.next();
-        pos.letter ++;
 
         if(isLetter(c)) { // Letter (keyword or identifier)
-            StringBuilder str = new StringBuilder();
-            int len = 0;
-            token.setPosition(pos.line, pos.letter);
+            int start = scan.cursor - 1;
+            int hash = 0;
+            token.setOffset(scan.cursor - 1);
 
             // Scan until not letter | digit | _
             while(isLetter(c) || isDigit(c) || c == '_') {
-                str.append(c);
-                
+                hash = SymbolTable.hash(hash, c);
                 if(!scan.hasNext()) break;
 
                 c = scan.next();
-                len ++;
             }
 
             // Put character back if its not part of the identifier
             if(!(isLetter(c) || isDigit(c) || c == '_')) {
                 scan.putback(c);
-                len --;
             }
             
             // Check if token is identifier or keyword and generate the token
-            String s = str.toString();
-            if(symbolTable.contains(s)) { // Keyword
-                token.setKind(s);
+            // (only identifiers are copied out of the buffer)
+            TokenKind keyword = TokenKind.keyword(scan, start, scan.cursor - start);
+            if(keyword != null) { // Keyword
+                token.setKind(keyword);
                 token.setValue("");
+                token.setSymbol(-1);
 
             } else { // Identifier
-                token.setKind("ID");
-                token.setValue(s);
+                int symbol = symbols.intern(scan, start, scan.cursor - start, hash);
+                token.setKind(TokenKind.ID);
+                token.setValue(symbols.name(symbol));
+                token.setSymbol(symbol);
             }
 
-            pos.letter += len;
         }
         
         else if(isDigit(c)) { // Digit
-            StringBuilder str = new StringBuilder();
-            int len = 0;
-            token.setPosition(pos.line, pos.letter);
+            int start = scan.cursor - 1;
+            token.setOffset(scan.cursor - 1);
 
             while(isDigit(c)) {
-                str.append(c);
-                
                 if(!scan.hasNext()) break;
                 
                 c = scan.next();
-                len ++;
             }
 
             // Put character back if its not part of the integer
             if(!isDigit(c)) {
                 scan.putback(c);
-                len --;
             }
 
             // Generate the token
-            token.setKind("NUM");
-            token.setValue(str.toString());
-            pos.letter += len;
+            token.setKind(TokenKind.NUM);
+            token.setValue(scan.substring(start, scan.cursor - start));
         }
         
         else if(c == '/') { // Divide Symbol (comment or division)
             if(scan.hasNext() && (scan.peek() == '/')) { // Comment
-                scan.skipLine(); // Get rid of remainder of line
-                pos.line ++;
-                pos.letter = 0;
-                next(); // Found a comment, not a token. So continue looking for next token
+                if(scan.skipLine()) // Get rid of remainder of line
+                    lines.add(scan.cursor);
+                return scanToken(); // Found a comment, not a token. So continue looking for next token
 
             } else { // Division
-                token.setKind("/");
+                token.setKind(TokenKind.DIV);
                 token.setValue("");
-                token.setPosition(pos.line, pos.letter);
+                token.setOffset(scan.cursor - 1);
             }
         }
 
         else if(c == '<') { // <
-            token.setKind("<");
+            token.setKind(TokenKind.LT);
             token.setValue("");
-            token.setPosition(pos.line, pos.letter);
+            token.setOffset(scan.cursor - 1);
         }
 
         else if(c == '>') { // > or >=
-            token.setPosition(pos.line, pos.letter);
+            token.setOffset(scan.cursor - 1);
 
             // Check if token is > or >= and generate it
-            if(scan.peek() == '=') { // >=
+            if(scan.hasNext() && (scan.peek() == '=')) { // >=
                 // must be after and followed by letter or digit
-                token.setKind(">=");
+                token.setKind(TokenKind.GTEQ);
                 token.setValue("");
                 scan.next(); // Skip this char, we know its '='
-                pos.letter ++;
 
             } else { // >
                 // must be after and followed by letter or digit
-                token.setKind(">");
+                token.setKind(TokenKind.GT);
                 token.setValue("");
             }
         }
 
         else if(c == '=') { // =, =<
-            token.setPosition(pos.line, pos.letter);
+            token.setOffset(scan.cursor - 1);
 
             // Check if token is = or =< and generate it
             if(scan.hasNext() && ( scan.peek() == '<') ){ // =<
-                token.setKind("=<");
+                token.setKind(TokenKind.EQLT);
                 token.setValue("");
                 scan.next(); // Skip this char
-                pos.letter ++;
 
             } else { // =
-                token.setKind("=");
+                token.setKind(TokenKind.EQ);
                 token.setValue("");
             }
         }
@@ -1063,101 +5343,111 @@ public class Project2 {
         else if(c == '!') { // !=
             // Check if token is !=, otherwise generate error
             if(scan.hasNext() && ( scan.peek() == '=') ) {
-                token.setKind("!=");
+                token.setKind(TokenKind.NOTEQ);
                 token.setValue("");
-                token.setPosition(pos.line, pos.letter);
+                token.setOffset(scan.cursor - 1);
                 scan.next();
             } else {
-                genError(pos.toString(), "Illegal token: \'!\', missing \'=\'?");
+                genError(lines.format(scan.cursor - 1), "Illegal token: \'!\', missing \'=\'?");
+                ok = false;
             }
         }
 
         else if(c == '_') { // Nothing will begin with _
-            genError(pos.toString(), "Illegal token: \'_\', used in identifier?");
+            genError(lines.format(scan.cursor - 1), "Illegal token: \'_\', used in identifier?");
+            ok = false;
         }
 
         else if(c == '+') {
-            token.setKind("+");
+            token.setKind(TokenKind.PLUS);
             token.setValue("");
-            token.setPosition(pos.line, pos.letter);
+            token.setOffset(scan.cursor - 1);
         }
 
         else if(c == '-') { // AdditiveOperator or UnaryOperator
-            token.setKind("-");
+            token.setKind(TokenKind.MINUS);
             token.setValue("");
-            token.setPosition(pos.line, pos.letter);
+            token.setOffset(scan.cursor - 1);
         }
 
         else if(c == '*') {
-            token.setKind("*");
+            token.setKind(TokenKind.MULT);
             token.setValue("");
-            token.setPosition(pos.line, pos.letter);
+            token.setOffset(scan.cursor - 1);
         }
 
         else if(c == '(') {
-            token.setKind("(");
+            token.setKind(TokenKind.LPAREN);
             token.setValue("");
-            token.setPosition(pos.line, pos.letter);
+            token.setOffset(scan.cursor - 1);
         }
 
         else if(c == ')') {
-            token.setKind(")");
+            token.setKind(TokenKind.RPAREN);
             token.setValue("");
-            token.setPosition(pos.line, pos.letter);
+            token.setOffset(scan.cursor - 1);
         }
 
         else if(c == ';') {
-            token.setKind(";");
+            token.setKind(TokenKind.SEMICOLON);
             token.setValue("");
-            token.setPosition(pos.line, pos.letter);
+            token.setOffset(scan.cursor - 1);
         }
 
         else if(c == ':') { // : or :=
-            token.setPosition(pos.line, pos.letter);
+            token.setOffset(scan.cursor - 1);
 
             // Check if token is : or := and generate it
             if(scan.hasNext() && ( scan.peek() == '=') ) { // :=
-                token.setKind(":=");
+                token.setKind(TokenKind.ASSIGN);
                 token.setValue("");
                 scan.next(); // Skip this char, we know it's '='
-                pos.letter ++;
 
             } else { // :
-                token.setKind(":");
+                token.setKind(TokenKind.COLON);
                 token.setValue("");
             }
         }
 
         else { // Symbol not in language
-            genError(pos.toString(), "Symbol \'" + c + "\' not allowed");
+            genError(lines.format(scan.cursor - 1), "Symbol \'" + c + "\' not allowed");
+            ok = false;
         }
 
         // Remove whitespace after this token
         remWS();
-    } // End next()
+        return ok;
+    } // End scanToken()
     
     /**
      * kind(), value(), position()
      * As required by rubric.
-     * Also includes value_int() for case kind == "NUM"
+     * Also includes value_int() for case kind == "NUM",
+     * and offset(), which position() formats as "line:letter".
      */
-    String kind() { return token.getKind(); }
+    TokenKind kind() { return token.getKind(); }
 
     String value() { return token.getValue(); } // Return String value
 
     Integer value_int() { return token.getValueInt(); } // Return Int value
 
-    String position() { return token.getPosition(); }
+    String position() { return lines.format(token.getOffset()); }
+
+    int offset() { return token.getOffset(); }
+
+    int symbol() { return token.getSymbol(); } // Symbol id of an identifier
     
     /**
      * print()
      * Displays the current token's information
      * Only display if no error
      */
-    void print(String position, String kind , String value) {
+    void print(int offset, TokenKind kind , String value) {
         if(hasError || !displayLexical) return;
-        System.out.format(DISP_FORMAT, position, kind, value);
-        System.out.println("");
+        out.position(lines, offset, DISP_WIDTHS[0]);
+        out.column(kind.toString(), DISP_WIDTHS[1]);
+        out.column(value, DISP_WIDTHS[2]);
+        out.println();
     }
 
     /**
@@ -1167,8 +5457,10 @@ public class Project2 {
      */
     void print(Token t) {
         //if(hasError || !displayLexical) return;
-        System.out.format(DISP_FORMAT, t.getPosition(), t.getKind(), t.getValue());
-        System.out.println("");
+        out.position(lines, t.getOffset(), DISP_WIDTHS[0]);
+        out.column(t.getKind().toString(), DISP_WIDTHS[1]);
+        out.column(t.getValue(), DISP_WIDTHS[2]);
+        out.println();
     }
     
     /**
@@ -1187,40 +5479,36 @@ public class Project2 {
         return (c >= '0' && c <= '9') ? true : false;
     }
     
-    /**
-     * createSymbolTable()
-     * Adds all keywords to an array that will be checked
-     * to see if current token is a keyword.
-     */
-    public void createSymbolTable() {
-        symbolTable = new ArrayList<String>();
-        symbolTable.add("program");
-        symbolTable.add("bool");
-        symbolTable.add("end");
-        symbolTable.add("int");
-        symbolTable.add("if");
-        symbolTable.add("then");
-        symbolTable.add("else");
-        symbolTable.add("fi");
-        symbolTable.add("while");
-        symbolTable.add("do");
-        symbolTable.add("od");
-        symbolTable.add("print");
-        symbolTable.add("or");
-        symbolTable.add("and");
-        symbolTable.add("not");
-        symbolTable.add("false");
-        symbolTable.add("true");
-    }
-    
     /**
      * genError()
      * Outputs text describing an error, including the position and possible token
      */
     public void genError(String position, String message) {
-        System.out.println("Error: at " + position + ", " + message);
-        System.out.println("Task ended due to error.\n");
+        out.println("Error: at " + position + ", " + message);
+        errorCount ++;
         hasError = true;
+        panic = true;
+    }
+
+    /**
+     * syntaxError()
+     * Reports an error at the current token, unless the parser is still
+     * recovering from an earlier one (which would only report its echoes).
+     */
+    void syntaxError(String message) {
+        if(!panic)
+            genError(position(), message);
+    }
+
+    /**
+     * endTask()
+     * Ends the output of a scan that found errors.
+     */
+    void endTask() {
+        if(errorCount == 1)
+            out.println("Task ended due to error.\n");
+        else if(errorCount > 1)
+            out.println("Task ended due to " + errorCount + " errors.\n");
     }
 
     /**
@@ -1232,12 +5520,9 @@ public class Project2 {
         char w = scan.peek();
         while(scan.hasNext() && (w == '\n' || w == '\t' || w == '\r' || w == ' ')) {
             scan.next();
-            pos.letter ++;
 
-            if(w == '\n') { // || w == '\r'
-                pos.line ++;
-                pos.letter = 0;
-            }
+            if(w == '\n') // || w == '\r'
+                lines.add(scan.cursor);
 
             if(!scan.hasNext()) return;
 
@@ -1247,12 +5532,14 @@ public class Project2 {
     
     /**
      * getElements()
-     * Returns array of strings as a single string.
+     * Returns a set of token kinds as a single string, in TokenKind order.
+     * Only called to build an error message.
      */
-    String getElements(String[] elements) {
+    String getElements(long elements) {
         StringBuilder s = new StringBuilder("{ ");
-        for(String e : elements)
-            s.append(e + ", ");
+        for(TokenKind e : TokenKind.values())
+            if((elements & e.bit) != 0)
+                s.append(e + ", ");
         //s = s.substring(0, s.length() - 2); // Get rid of last ", "
         s.delete(s.length() - 2, s.length() - 1);
         s.append("}");
@@ -1261,15 +5548,10 @@ public class Project2 {
     
     /**
      * belongsTo()
-     * Verifies that the symbol belongs to an array of symbols.
+     * Verifies that the symbol belongs to a set of symbols (see TokenKind.setOf()).
      */
-    boolean csymBelongsTo(String... symbols) {
-        for(String s : symbols) {
-            if(kind().equals(s)) {
-                return true; // Found, so return. Testing no longer needed.
-            }
-        }
-        return false;
+    boolean csymBelongsTo(long symbols) {
+        return (kind().bit & symbols) != 0;
     }
     
     /**
@@ -1279,6 +5561,6 @@ public class Project2 {
      */
     void outputProc(String info) {
         if(!hasError && displayProc) // Prevents displaying procedures after error is found
-            System.out.println(info);
+            out.println(info);
     }
 }